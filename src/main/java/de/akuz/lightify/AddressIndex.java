@@ -0,0 +1,82 @@
+package de.akuz.lightify;
+
+/**
+ * Open addressing map from the 64 bit light address to the {@link Light}. Lookups read the key straight out of a
+ * received frame, so resolving a light does not allocate.
+ *
+ * <p>
+ * Written by the event loop and read by user threads, all access is synchronized on the index.
+ */
+class AddressIndex {
+
+    private long[] keys;
+    private Light[] values;
+    private int size;
+
+    AddressIndex(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new Light[capacity];
+    }
+
+    synchronized Light get(long key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    synchronized void put(long key, Light light) {
+        if ((size + 1) * 2 > keys.length) {
+            resize(keys.length << 1);
+        }
+        if (insert(keys, values, key, light)) {
+            size++;
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] newKeys = new long[capacity];
+        Light[] newValues = new Light[capacity];
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] != null) {
+                insert(newKeys, newValues, keys[i], values[i]);
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+
+    private static boolean insert(long[] keys, Light[] values, long key, Light light) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (values[i] != null) {
+            if (keys[i] == key) {
+                values[i] = light;
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = light;
+        return true;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.akuz.lightify;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Loads a file written by {@link WireCapture#dump(File)} into memory and feeds the captured inbound frames through
+ * the decoder of a {@link Gateway} as fast as possible. The gateway does not need to be connected, so a capture from
+ * a production installation can be inspected offline or used to benchmark the parse path.
+ */
+public class CaptureReplay {
+
+    private final long[] timestamps;
+    private final byte[] directions;
+    private final byte[][] frames;
+
+    public CaptureReplay(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != WireCapture.MAGIC) {
+                throw new IOException("not a wire capture: " + file);
+            }
+            int version = in.readInt();
+            if (version != WireCapture.VERSION) {
+                throw new IOException("unsupported wire capture version " + version);
+            }
+            in.readLong(); // wall clock at dump time
+            in.readLong(); // nano time at dump time
+            int count = in.readInt();
+            timestamps = new long[count];
+            directions = new byte[count];
+            frames = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                timestamps[i] = in.readLong();
+                directions[i] = in.readByte();
+                frames[i] = new byte[in.readInt()];
+                in.readFully(frames[i]);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    public byte getDirection(int index) {
+        return directions[index];
+    }
+
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    public byte[] getFrame(int index) {
+        return frames[index];
+    }
+
+    /**
+     * Feeds every captured inbound frame to the gateway's decoder in capture order.
+     *
+     * @return the number of frames replayed
+     */
+    public int replay(Gateway gateway) {
+        int replayed = 0;
+        for (int i = 0; i < frames.length; i++) {
+            if (directions[i] == WireCapture.INBOUND) {
+                gateway.onRead(ByteBuffer.wrap(frames[i]));
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+}
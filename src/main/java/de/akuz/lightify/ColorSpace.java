@@ -0,0 +1,223 @@
+package de.akuz.lightify;
+
+/**
+ * Converts between the raw colour channels sent to the gateway and the colour models used by front ends: HSV, CIE 1931
+ * xy and colour temperature in Kelvin. Colours are passed as 0xRRGGBB ints like in {@link LightState}.
+ *
+ * <p>
+ * The channels of a lamp drive its LEDs linearly while HSV is perceptual, so HSV values are gamma corrected on the
+ * way in and out. xy is converted with the linear sRGB primaries and needs no correction. Gamma curves and the colour
+ * of black body radiation are tabulated once when the class is loaded, after that no conversion calls {@link Math#pow}
+ * or trigonometric functions.
+ */
+public final class ColorSpace {
+
+    public static final double GAMMA = 2.2;
+
+    public static final int MIN_KELVIN = 1000;
+    public static final int MAX_KELVIN = 12000;
+    private static final int KELVIN_STEP = 50;
+
+    // perceptual channel value to linear channel value and back
+    private static final byte[] DECODE = new byte[256];
+    private static final byte[] ENCODE = new byte[256];
+
+    private static final int[] KELVIN_RGB = new int[(MAX_KELVIN - MIN_KELVIN) / KELVIN_STEP + 1];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            DECODE[i] = (byte) Math.round(255 * Math.pow(i / 255.0, GAMMA));
+            ENCODE[i] = (byte) Math.round(255 * Math.pow(i / 255.0, 1 / GAMMA));
+        }
+        for (int i = 0; i < KELVIN_RGB.length; i++) {
+            KELVIN_RGB[i] = blackBody(MIN_KELVIN + i * KELVIN_STEP);
+        }
+    }
+
+    private ColorSpace() {
+    }
+
+    /**
+     * @param hue
+     *            0-359 degrees
+     * @param saturation
+     *            0-255
+     * @param value
+     *            0-255, perceptual
+     * @return the linear channels as 0xRRGGBB
+     */
+    public static int hsvToRGB(int hue, int saturation, int value) {
+        hue = ((hue % 360) + 360) % 360;
+        saturation = clamp(saturation, 0, 255);
+        value = clamp(value, 0, 255);
+        int sector = hue / 60;
+        int fraction = (hue - sector * 60) * 255 / 60;
+        int p = value * (255 - saturation) / 255;
+        int q = value * (255 - saturation * fraction / 255) / 255;
+        int t = value * (255 - saturation * (255 - fraction) / 255) / 255;
+        int r, g, b;
+        switch (sector) {
+            case 0:
+                r = value;
+                g = t;
+                b = p;
+                break;
+            case 1:
+                r = q;
+                g = value;
+                b = p;
+                break;
+            case 2:
+                r = p;
+                g = value;
+                b = t;
+                break;
+            case 3:
+                r = p;
+                g = q;
+                b = value;
+                break;
+            case 4:
+                r = t;
+                g = p;
+                b = value;
+                break;
+            default:
+                r = value;
+                g = p;
+                b = q;
+        }
+        return (DECODE[r] & 0xFF) << 16 | (DECODE[g] & 0xFF) << 8 | (DECODE[b] & 0xFF);
+    }
+
+    /**
+     * @param rgb
+     *            the linear channels as 0xRRGGBB
+     * @return hue (0-359), saturation (0-255) and perceptual value (0-255)
+     */
+    public static int[] rgbToHSV(int rgb) {
+        int r = ENCODE[(rgb >>> 16) & 0xFF] & 0xFF;
+        int g = ENCODE[(rgb >>> 8) & 0xFF] & 0xFF;
+        int b = ENCODE[rgb & 0xFF] & 0xFF;
+        int max = Math.max(r, Math.max(g, b));
+        int min = Math.min(r, Math.min(g, b));
+        int delta = max - min;
+        int hue = 0;
+        if (delta > 0) {
+            if (max == r) {
+                hue = 60 * (g - b) / delta;
+            } else if (max == g) {
+                hue = 120 + 60 * (b - r) / delta;
+            } else {
+                hue = 240 + 60 * (r - g) / delta;
+            }
+            if (hue < 0) {
+                hue += 360;
+            }
+        }
+        int saturation = max == 0 ? 0 : delta * 255 / max;
+        return new int[] { hue, saturation, max };
+    }
+
+    /**
+     * Converts a chromaticity to the brightest colour of that chromaticity the channels can show.
+     *
+     * @return the linear channels as 0xRRGGBB, black if the chromaticity is invalid
+     */
+    public static int xyToRGB(double x, double y) {
+        if (y <= 0) {
+            return 0;
+        }
+        double cx = x / y;
+        double cz = (1 - x - y) / y;
+        double r = 3.2406 * cx - 1.5372 - 0.4986 * cz;
+        double g = -0.9689 * cx + 1.8758 + 0.0415 * cz;
+        double b = 0.0557 * cx - 0.2040 + 1.0570 * cz;
+        // colours outside the gamut lose their negative components
+        r = Math.max(r, 0);
+        g = Math.max(g, 0);
+        b = Math.max(b, 0);
+        double max = Math.max(r, Math.max(g, b));
+        if (max <= 0) {
+            return 0;
+        }
+        return channel(r / max) << 16 | channel(g / max) << 8 | channel(b / max);
+    }
+
+    /**
+     * @param rgb
+     *            the linear channels as 0xRRGGBB
+     * @return the chromaticity x and y, the white point for black
+     */
+    public static double[] rgbToXY(int rgb) {
+        double r = ((rgb >>> 16) & 0xFF) / 255.0;
+        double g = ((rgb >>> 8) & 0xFF) / 255.0;
+        double b = (rgb & 0xFF) / 255.0;
+        double cx = 0.4124 * r + 0.3576 * g + 0.1805 * b;
+        double cy = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+        double cz = 0.0193 * r + 0.1192 * g + 0.9505 * b;
+        double sum = cx + cy + cz;
+        if (sum <= 0) {
+            return new double[] { 0.3127, 0.3290 };
+        }
+        return new double[] { cx / sum, cy / sum };
+    }
+
+    /**
+     * @return the linear channels as 0xRRGGBB that approximate a black body of the given temperature, for lamps
+     *         without tunable white
+     */
+    public static int kelvinToRGB(int kelvin) {
+        int index = (clamp(kelvin, MIN_KELVIN, MAX_KELVIN) - MIN_KELVIN + KELVIN_STEP / 2) / KELVIN_STEP;
+        return KELVIN_RGB[index];
+    }
+
+    /**
+     * Estimates the correlated colour temperature of a colour with McCamy's approximation.
+     *
+     * @param rgb
+     *            the linear channels as 0xRRGGBB
+     */
+    public static int rgbToKelvin(int rgb) {
+        double[] xy = rgbToXY(rgb);
+        double n = (xy[0] - 0.3320) / (0.1858 - xy[1]);
+        double cct = ((449 * n + 3525) * n + 6823.3) * n + 5520.33;
+        return clamp((int) Math.round(cct), MIN_KELVIN, MAX_KELVIN);
+    }
+
+    /**
+     * Tanner Helland's fit of the black body colour, only used to fill the table.
+     */
+    private static int blackBody(int kelvin) {
+        double t = kelvin / 100.0;
+        double r, g, b;
+        if (t <= 66) {
+            r = 255;
+            g = 99.4708025861 * Math.log(t) - 161.1195681661;
+        } else {
+            r = 329.698727446 * Math.pow(t - 60, -0.1332047592);
+            g = 288.1221695283 * Math.pow(t - 60, -0.0755148492);
+        }
+        if (t >= 66) {
+            b = 255;
+        } else if (t <= 19) {
+            b = 0;
+        } else {
+            b = 138.5177312231 * Math.log(t - 10) - 305.0447927307;
+        }
+        // the fit is in perceptual sRGB
+        int ri = DECODE[clamp((int) Math.round(r), 0, 255)] & 0xFF;
+        int gi = DECODE[clamp((int) Math.round(g), 0, 255)] & 0xFF;
+        int bi = DECODE[clamp((int) Math.round(b), 0, 255)] & 0xFF;
+        return ri << 16 | gi << 8 | bi;
+    }
+
+    private static int channel(double value) {
+        return (int) Math.round(value * 255);
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+}
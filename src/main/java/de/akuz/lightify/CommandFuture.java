@@ -0,0 +1,91 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completes when the reply to a command has been received and decoded. The result is true if the gateway reported
+ * success. If the command is lost, or the gateway is closed before the reply arrives, the future fails with an
+ * {@link IOException}.
+ *
+ * <p>
+ * Waiting does not hold a monitor, so any number of threads, including virtual threads, can wait concurrently.
+ */
+public class CommandFuture implements Future<Boolean> {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile boolean success;
+    private volatile IOException failure;
+
+    void complete(boolean success) {
+        this.success = success;
+        done.countDown();
+    }
+
+    void fail(IOException failure) {
+        this.failure = failure;
+        done.countDown();
+    }
+
+    /**
+     * Commands already written cannot be cancelled.
+     *
+     * @return always false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Boolean get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    /**
+     * Waits for the reply.
+     *
+     * @return true if the gateway reported success
+     * @throws IOException
+     *             if the command was lost or the gateway was closed
+     */
+    public boolean await() throws IOException, InterruptedException {
+        done.await();
+        if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        return success;
+    }
+
+    private Boolean result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return success;
+    }
+
+}
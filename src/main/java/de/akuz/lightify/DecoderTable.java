@@ -0,0 +1,38 @@
+package de.akuz.lightify;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dispatch table indexed by the command byte. Every slot pairs the decoder for replies with the {@link Packet}
+ * class that encodes the matching request. Entries may be registered from any thread while the event loop reads the
+ * table, a slot is replaced as a whole so decoder and encoder are always seen together.
+ */
+class DecoderTable {
+
+    private static final class Entry {
+        final PacketDecoder decoder;
+        final Class<? extends Packet> encoder;
+
+        Entry(PacketDecoder decoder, Class<? extends Packet> encoder) {
+            this.decoder = decoder;
+            this.encoder = encoder;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(256);
+
+    void register(byte command, Class<? extends Packet> encoder, PacketDecoder decoder) {
+        entries.set(command & 0xFF, new Entry(decoder, encoder));
+    }
+
+    PacketDecoder getDecoder(byte command) {
+        Entry entry = entries.get(command & 0xFF);
+        return entry != null ? entry.decoder : null;
+    }
+
+    Class<? extends Packet> getEncoder(byte command) {
+        Entry entry = entries.get(command & 0xFF);
+        return entry != null ? entry.encoder : null;
+    }
+
+}
@@ -0,0 +1,412 @@
+package de.akuz.lightify;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only audit log of the commands sent to a gateway and the states it reported, see
+ * {@link Gateway#setJournal(EventJournal)}. Records are written into memory-mapped segment files of fixed size. When a
+ * segment is full the journal continues in the next one, which a background thread creates and maps in advance, so
+ * appending only copies bytes into memory and never waits for the disk. If the next segment is not ready yet the
+ * record is dropped and counted.
+ *
+ * <p>
+ * Segment files are named {@code journal-<index>.seg} and hold records back to back, the first zero length marks the
+ * end of the written data. Every record (little endian) starts with its length (int), type (byte) and wall clock
+ * millis (long), followed by
+ * <ul>
+ * <li>{@link #COMMAND}: sequence number (byte), address key of the target or 0 (long) and the raw frame</li>
+ * <li>{@link #STATE}: address key of the luminary (long) and its state packed as in {@link LightState} (long)</li>
+ * </ul>
+ * The address key is the light address read as a little endian long, or the group id for groups.
+ */
+public class EventJournal implements Closeable {
+
+    private final static Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+    public static final byte COMMAND = 0x01;
+    public static final byte STATE = 0x02;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    static final int HEADER_LENGTH = 4 + 1 + 8;
+    private static final int PAGE_SIZE = 4096;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ExecutorService preallocator;
+
+    private MappedByteBuffer segment;
+    private int segmentIndex;
+    private Future<MappedByteBuffer> nextSegment;
+
+    private long recordsWritten;
+    private long recordsDropped;
+    private boolean closed;
+
+    public EventJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a journal in the given directory. Existing segments are kept, new records go into a new segment after
+     * the last existing one.
+     */
+    public EventJournal(File directory, int segmentSize) throws IOException {
+        if (segmentSize < PAGE_SIZE) {
+            throw new IllegalArgumentException("segments must hold at least " + PAGE_SIZE + " bytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        File[] existing = segments(directory);
+        if (existing.length == 0) {
+            segmentIndex = 0;
+        } else {
+            // a trailing empty segment was preallocated but never used, e.g. after a crash
+            File last = existing[existing.length - 1];
+            segmentIndex = indexOf(last) + (isEmpty(last) ? 0 : 1);
+        }
+        segment = touch(map(segmentIndex));
+        preallocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "journal-preallocator");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        prepareNext();
+    }
+
+    /**
+     * Records a command written to the gateway.
+     *
+     * @param target
+     *            address key of the luminary changed by the command, 0 for queries
+     * @return false if the record was dropped
+     */
+    public synchronized boolean appendCommand(byte sequence, byte[] frame, long target) {
+        int length = HEADER_LENGTH + 1 + 8 + frame.length;
+        if (!reserve(length)) {
+            return false;
+        }
+        putHeader(length, COMMAND);
+        segment.put(sequence);
+        segment.putLong(target);
+        segment.put(frame);
+        recordsWritten++;
+        return true;
+    }
+
+    /**
+     * Records a state reported by the gateway.
+     *
+     * @return false if the record was dropped
+     */
+    public synchronized boolean appendState(long address, long state) {
+        int length = HEADER_LENGTH + 8 + 8;
+        if (!reserve(length)) {
+            return false;
+        }
+        putHeader(length, STATE);
+        segment.putLong(address);
+        segment.putLong(state);
+        recordsWritten++;
+        return true;
+    }
+
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    /**
+     * @return records dropped because the next segment was not ready or the journal was closed
+     */
+    public synchronized long getRecordsDropped() {
+        return recordsDropped;
+    }
+
+    /**
+     * Writes the current segment to disk. Blocks, so do not call from the event loop.
+     */
+    public void flush() {
+        MappedByteBuffer current;
+        synchronized (this) {
+            current = segment;
+        }
+        if (current != null) {
+            current.force();
+        }
+    }
+
+    /**
+     * Writes the current segment to disk and removes the preallocated next segment, waiting for its preallocation to
+     * finish if it is still running.
+     */
+    @Override
+    public void close() throws IOException {
+        MappedByteBuffer current;
+        int nextIndex;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            current = segment;
+            nextIndex = segmentIndex + 1;
+            segment = null;
+        }
+        current.force();
+        preallocator.shutdownNow();
+        try {
+            preallocator.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        File next = new File(directory, name(nextIndex));
+        if (next.exists() && !next.delete()) {
+            // still mapped on some platforms, reused as it is empty when the journal is opened again
+            logger.debug("Could not remove unused journal segment {}", next);
+        }
+    }
+
+    private void putHeader(int length, byte type) {
+        segment.putInt(length);
+        segment.put(type);
+        segment.putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Makes sure the current segment has room for the record, rolling over to the preallocated segment if needed.
+     */
+    private boolean reserve(int length) {
+        if (closed || length > segmentSize) {
+            recordsDropped++;
+            return false;
+        }
+        if (segment.remaining() >= length) {
+            return true;
+        }
+        if (!nextSegment.isDone()) {
+            recordsDropped++;
+            return false;
+        }
+        try {
+            segment = nextSegment.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            recordsDropped++;
+            return false;
+        } catch (ExecutionException e) {
+            logger.error("Preallocating journal segment {} failed", segmentIndex + 1, e.getCause());
+            recordsDropped++;
+            prepareNext();
+            return false;
+        }
+        segmentIndex++;
+        prepareNext();
+        return true;
+    }
+
+    private void prepareNext() {
+        final int index = segmentIndex + 1;
+        nextSegment = preallocator.submit(new Callable<MappedByteBuffer>() {
+            @Override
+            public MappedByteBuffer call() throws IOException {
+                return touch(map(index));
+            }
+        });
+    }
+
+    /**
+     * Touches every page so appends do not fault.
+     */
+    private static MappedByteBuffer touch(MappedByteBuffer buf) {
+        for (int pos = 0; pos < buf.capacity(); pos += PAGE_SIZE) {
+            buf.put(pos, (byte) 0);
+        }
+        return buf;
+    }
+
+    private MappedByteBuffer map(int index) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, name(index)), "rw");
+        try {
+            file.setLength(segmentSize);
+            MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            return buf;
+        } finally {
+            // the mapping stays valid after the file is closed
+            file.close();
+        }
+    }
+
+    /**
+     * @return true if the segment holds no record
+     */
+    private static boolean isEmpty(File segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            return file.length() < 4 || file.readInt() == 0;
+        } finally {
+            file.close();
+        }
+    }
+
+    static String name(int index) {
+        return String.format("journal-%08d.seg", index);
+    }
+
+    static int indexOf(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - ".seg".length()));
+    }
+
+    /**
+     * @return the segment files in the directory in the order they were written
+     */
+    static File[] segments(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("journal-\\d{8}\\.seg");
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Reads all records of the journal in the given directory in the order they were written.
+     */
+    public static Reader read(File directory) {
+        return new Reader(segments(directory));
+    }
+
+    /**
+     * Sequential reader over all segments of a journal. Call {@link #next()} to advance to the next record, then read
+     * its fields with the getters.
+     */
+    public static class Reader implements Closeable {
+
+        private final File[] files;
+        private int file = -1;
+        private MappedByteBuffer segment;
+
+        private int start;
+        private int length;
+        private byte type;
+        private long time;
+
+        Reader(File[] files) {
+            this.files = files;
+        }
+
+        /**
+         * @return false once all records have been read
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (segment != null && segment.remaining() >= HEADER_LENGTH) {
+                    start = segment.position();
+                    length = segment.getInt(start);
+                    if (length >= HEADER_LENGTH && length <= segment.remaining()) {
+                        type = segment.get(start + 4);
+                        time = segment.getLong(start + 5);
+                        segment.position(start + length);
+                        return true;
+                    }
+                }
+                if (++file >= files.length) {
+                    segment = null;
+                    return false;
+                }
+                segment = open(files[file]);
+            }
+        }
+
+        private static MappedByteBuffer open(File f) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            try {
+                MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                return buf;
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * @return {@link EventJournal#COMMAND} or {@link EventJournal#STATE}
+         */
+        public byte getType() {
+            return type;
+        }
+
+        /**
+         * @return wall clock millis when the record was appended
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public byte getSequence() {
+            return segment.get(start + HEADER_LENGTH);
+        }
+
+        /**
+         * @return the address key of the command target or the luminary whose state was reported
+         */
+        public long getAddress() {
+            return segment.getLong(start + HEADER_LENGTH + (type == COMMAND ? 1 : 0));
+        }
+
+        /**
+         * @return the reported state, see {@link LightState}
+         */
+        public long getState() {
+            return segment.getLong(start + HEADER_LENGTH + 8);
+        }
+
+        /**
+         * @return a copy of the raw frame of a command
+         */
+        public byte[] getFrame() {
+            byte[] frame = new byte[length - HEADER_LENGTH - 9];
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = segment.get(start + HEADER_LENGTH + 9 + i);
+            }
+            return frame;
+        }
+
+        @Override
+        public void close() {
+            segment = null;
+            file = files.length;
+        }
+    }
+
+}
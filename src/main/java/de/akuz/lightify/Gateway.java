@@ -10,19 +10,26 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import de.akuz.lightify.Light.Address;
-
 public class Gateway implements Runnable {
     private final static Logger logger = LoggerFactory.getLogger(Gateway.class);
 
@@ -30,11 +37,35 @@ public class Gateway implements Runnable {
     private static final long MAXIMUM_RECONNECT_INTERVAL = 30000; // 30 sec.
     private static final int READ_BUFFER_SIZE = 2048;
     private static final int WRITE_BUFFER_SIZE = 2048;
+    private static final long HOUSEKEEPING_INTERVAL = 100; // 100 ms.
+    private static final long DEFAULT_CONFIRMATION_TIMEOUT = 2000; // 2 sec.
+    private static final int DEFAULT_SEQUENCE_WINDOW = 128;
+    private static final int DEFAULT_MAX_RETRANSMISSIONS = 2;
+    // a heartbeat is only missed once it took this many smoothed round trip times
+    private static final int HEARTBEAT_ROUND_TRIPS = 4;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL = 5000; // 5 sec.
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT = 2000; // 2 sec.
+    private static final int DEFAULT_MAX_MISSED_HEARTBEATS = 2;
+
+    /**
+     * How the connection to the gateway is doing, see {@link Gateway#setHeartbeat(long, long, int)}.
+     */
+    public enum Health {
+        /** not connected, the event loop is waiting to reconnect */
+        DISCONNECTED,
+        /** the gateway answered recently */
+        HEALTHY,
+        /** at least one heartbeat got no reply, the connection is dropped once too many are missed */
+        DEGRADED
+    }
 
     private long reconnectInterval = INITIAL_RECONNECT_INTERVAL;
 
     private ByteBuffer readBuf = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
     private ByteBuffer writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    // guards writeBuf, which is replaced when the event loop has to grow it
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition writeSpace = writeLock.newCondition();
 
     private final Thread thread = new Thread(this);
     private SocketAddress address;
@@ -43,27 +74,311 @@ public class Gateway implements Runnable {
     private SocketChannel channel;
 
     private final AtomicBoolean connected = new AtomicBoolean(false);
+    private volatile boolean closing;
+    private volatile long closeDeadline;
+
+    private volatile long heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile long heartbeatTimeout = DEFAULT_HEARTBEAT_TIMEOUT;
+    private volatile int maxMissedHeartbeats = DEFAULT_MAX_MISSED_HEARTBEATS;
+    // heartbeat state, only written by the event loop
+    private long lastReceived;
+    private long heartbeatSentAt;
+    private volatile int missedHeartbeats;
+
+    private final InFlightTable inFlight = new InFlightTable(DEFAULT_SEQUENCE_WINDOW, DEFAULT_MAX_RETRANSMISSIONS);
+
+    private volatile boolean optimisticUpdates = true;
+    private volatile long confirmationTimeout = DEFAULT_CONFIRMATION_TIMEOUT;
+    private volatile long suppressionMaxAge = 0;
+    private final Queue<ByteBuffer> pendingBursts = new ConcurrentLinkedQueue<ByteBuffer>();
 
-    private AtomicInteger sequence = new AtomicInteger(0);
+    private final AtomicLong suppressedCommands = new AtomicLong();
 
-    private List<Group> groups = new ArrayList<Group>(50);
-    private List<Light> lights = new ArrayList<Light>(128);
+    private final LightStateStore store;
 
-    private int expectedLength = -1;
+    private volatile WireCapture capture;
+    private volatile EventJournal journal;
+
+    private volatile GatewayProxy proxy;
+
+    private final DecoderTable decoders = new DecoderTable();
+
+    private final AtomicReferenceArray<GroupAggregate> aggregates = new AtomicReferenceArray<GroupAggregate>(256);
+
+    private List<Group> groups = new CopyOnWriteArrayList<Group>();
+    private List<Light> lights = new CopyOnWriteArrayList<Light>();
+    private AddressIndex lightsByAddress = new AddressIndex(128);
+    private final BitSet lightSlots = new BitSet();
+    private final MembershipIndex membership = new MembershipIndex();
+    private final RefreshPlanner refreshPlanner = new RefreshPlanner(this);
 
     public Gateway(String host) {
         this(host, 4000);
     }
 
     public Gateway(String host, int port) {
+        this(host, port, new LightStateStore());
+    }
+
+    /**
+     * Creates a gateway that keeps the state of its lights and groups in the given store. Passing the same store to
+     * several gateways keeps the state of a whole fleet in one set of arrays.
+     */
+    public Gateway(String host, int port, LightStateStore store) {
         this.address = new InetSocketAddress(host, port);
+        this.store = store;
         readBuf.order(ByteOrder.LITTLE_ENDIAN);
+        registerDefaultDecoders();
+    }
+
+    private void registerDefaultDecoders() {
+        registerDecoder(Packet.COMMAND_GROUP_LIST, UpdateGroupsList.class, new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+                logger.debug("Received group list");
+                gateway.refreshGroups(frame);
+            }
+        });
+        registerDecoder(Packet.COMMAND_GROUP_INFO, UpdateGroupInfo.class, new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+                logger.debug("Received group info");
+                gateway.updateGroupInfo(frame);
+            }
+        });
+        registerDecoder(Packet.COMMAND_LIGHT_STATUS, UpdateLightStatus.class, new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+                logger.debug("Received light status");
+                gateway.updateLight(frame);
+            }
+        });
+        registerDecoder(Packet.COMMAND_ALL_LIGHT_STATUS, UpdateAllLightStatus.class, new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+                logger.debug("Received status for all lights");
+                gateway.updateAllLights(frame);
+            }
+        });
+        registerDecoder(Packet.COMMAND_ONOFF, OnOffCommand.class, new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+                gateway.updateOnOff(frame);
+            }
+        });
+        // The replies carry no state, the acknowledgement already confirmed the optimistic update
+        PacketDecoder acknowledgement = new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+            }
+        };
+        registerDecoder(Packet.COMMAND_LUMINANCE, SetLuminance.class, acknowledgement);
+        registerDecoder(Packet.COMMAND_TEMP, SetTemperature.class, acknowledgement);
+        registerDecoder(Packet.COMMAND_COLOUR, SetColor.class, acknowledgement);
+    }
+
+    /**
+     * Registers the decoder for replies with the given command byte, replacing any decoder registered before,
+     * including the built-in ones.
+     *
+     * @param encoder
+     *            the packet class sending the matching request, may be null
+     */
+    public void registerDecoder(byte command, Class<? extends Packet> encoder, PacketDecoder decoder) {
+        decoders.register(command, encoder, decoder);
+    }
+
+    public PacketDecoder getDecoder(byte command) {
+        return decoders.getDecoder(command);
+    }
+
+    public Class<? extends Packet> getEncoder(byte command) {
+        return decoders.getEncoder(command);
+    }
+
+    public LightStateStore getStateStore() {
+        return store;
+    }
+
+    /**
+     * Records all frames sent and received from now on into the given capture, pass null to stop recording.
+     */
+    public void setWireCapture(WireCapture capture) {
+        this.capture = capture;
+    }
+
+    public WireCapture getWireCapture() {
+        return capture;
+    }
+
+    /**
+     * Appends every command sent and every state reported by the gateway from now on to the given journal, pass null
+     * to stop.
+     */
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return the planner that refreshes only the lights whose cached state is likely out of date
+     */
+    public RefreshPlanner getRefreshPlanner() {
+        return refreshPlanner;
+    }
+
+    /**
+     * If enabled (the default) the cached state of a luminary is updated as soon as a command is sent and rolled back
+     * if the gateway reports an error or never acknowledges the command.
+     */
+    public void setOptimisticUpdates(boolean optimisticUpdates) {
+        this.optimisticUpdates = optimisticUpdates;
+    }
+
+    public boolean isOptimisticUpdates() {
+        return optimisticUpdates;
+    }
+
+    /**
+     * Sets how long a command waits for its reply before it is retransmitted or, once all retransmissions are used
+     * up, counted as lost.
+     */
+    public void setConfirmationTimeout(long millis) {
+        this.confirmationTimeout = millis;
+    }
+
+    public long getConfirmationTimeout() {
+        return confirmationTimeout;
+    }
+
+    /**
+     * Limits the number of commands waiting for their reply. Senders block while the window is full. Must be below
+     * 256 so a sequence number is never reused while it is outstanding.
+     */
+    public void setSequenceWindow(int window) {
+        inFlight.setWindow(window);
+    }
+
+    public int getSequenceWindow() {
+        return inFlight.getWindow();
+    }
+
+    /**
+     * Sets how often an idempotent command is retransmitted before it is counted as lost.
+     */
+    public void setMaxRetransmissions(int maxRetransmissions) {
+        inFlight.setMaxRetransmissions(maxRetransmissions);
+    }
+
+    public int getMaxRetransmissions() {
+        return inFlight.getMaxRetransmissions();
+    }
+
+    /**
+     * Configures the heartbeat. Once nothing has been received for {@code intervalMillis} a status query is sent. If
+     * the gateway does not answer within {@code timeoutMillis}, or four smoothed round trip times if the link is that
+     * slow, the heartbeat is repeated, after {@code maxMissed} heartbeats without an answer the connection is
+     * considered dead and re-established. Pass an interval of 0 to disable the heartbeat.
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis, int maxMissed) {
+        if (maxMissed < 1) {
+            throw new IllegalArgumentException("at least one missed heartbeat is needed to drop the connection");
+        }
+        this.heartbeatTimeout = timeoutMillis;
+        this.maxMissedHeartbeats = maxMissed;
+        this.heartbeatInterval = intervalMillis;
+    }
+
+    /**
+     * Lets local clients share this connection. Clients connect to the given address and speak the gateway protocol,
+     * group list and all light status queries are answered from the last reply seen on this connection if it is not
+     * older than {@code cacheMaxAgeMillis}. Pass 0 to forward every query.
+     *
+     * @return the address the proxy listens on, useful if the port was 0
+     */
+    public synchronized SocketAddress startProxy(SocketAddress bindAddress, long cacheMaxAgeMillis)
+            throws IOException {
+        if (proxy != null) {
+            throw new IllegalStateException("proxy already running on " + proxy.getLocalAddress());
+        }
+        proxy = new GatewayProxy(this, bindAddress, cacheMaxAgeMillis);
+        logger.info("Proxy for {} listening on {}", address, proxy.getLocalAddress());
+        return proxy.getLocalAddress();
+    }
+
+    /**
+     * Stops accepting proxy clients. Connected clients are dropped on the next event they cause.
+     */
+    public synchronized void stopProxy() {
+        if (proxy != null) {
+            proxy.close();
+            proxy = null;
+        }
+    }
+
+    public void setProxyCacheMaxAge(long millis) {
+        GatewayProxy proxy = this.proxy;
+        if (proxy != null) {
+            proxy.setCacheMaxAge(millis);
+        }
+    }
+
+    /**
+     * @return number of proxy client queries answered from the cache, -1 if the proxy is not running
+     */
+    public long getProxyCacheHits() {
+        GatewayProxy proxy = this.proxy;
+        return proxy != null ? proxy.getServedFromCache() : -1;
+    }
+
+    public long getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    public Health getHealth() {
+        if (!connected.get()) {
+            return Health.DISCONNECTED;
+        }
+        return missedHeartbeats > 0 ? Health.DEGRADED : Health.HEALTHY;
+    }
+
+    public LinkStatistics getLinkStatistics() {
+        return inFlight.getStatistics();
+    }
+
+    /**
+     * Enables skipping of commands that would not change the state of their target. A command is only skipped if the
+     * cached state already equals its effect, no other command to the target is unacknowledged and the state was
+     * confirmed by the gateway within the given age. Pass 0 (the default) to send every command.
+     */
+    public void setRedundantCommandSuppression(long maxAgeMillis) {
+        this.suppressionMaxAge = maxAgeMillis;
+    }
+
+    public long getRedundantCommandSuppression() {
+        return suppressionMaxAge;
+    }
+
+    /**
+     * @return the number of commands skipped by redundant command suppression
+     */
+    public long getSuppressedCommands() {
+        return suppressedCommands.get();
     }
 
     public void connect() throws IOException {
+        if (closing) {
+            throw new IOException("gateway closed");
+        }
         thread.start();
         // Only return when we are connected and really ready
         while (!connected.get()) {
+            if (closing) {
+                throw new IOException("gateway closed");
+            }
             try {
                 Thread.sleep(10);
             } catch (InterruptedException e) {
@@ -72,15 +387,93 @@ public class Gateway implements Runnable {
         }
     }
 
+    /**
+     * Stops the event loop right away. Unwritten commands are dropped, see {@link #close(long, TimeUnit)} for an
+     * orderly shutdown.
+     */
     public void disconnect() {
         thread.interrupt();
     }
 
+    /**
+     * Shuts the connection down in an orderly way. New commands are rejected immediately, commands not yet written to
+     * the network are given until the timeout to go out. After that all commands still waiting for their reply or for
+     * a free sequence number fail, the connection is closed and, once the event loop has stopped, the buffers are
+     * released. The gateway cannot be reconnected afterwards, {@link #connect()} fails.
+     */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        closeDeadline = System.nanoTime() + unit.toNanos(timeout);
+        closing = true;
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (thread.isAlive() && !isEventLoop()) {
+            long remaining = closeDeadline - System.nanoTime();
+            if (remaining > 0) {
+                thread.join(TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+            }
+            if (thread.isAlive()) {
+                thread.interrupt();
+                thread.join(HOUSEKEEPING_INTERVAL);
+            }
+        }
+        stopProxy();
+        inFlight.close(new IOException("gateway closed"));
+        pendingBursts.clear();
+        if (thread.isAlive()) {
+            // the buffers may still be in use, writers fail on the closing flag instead
+            logger.warn("Event loop for {} did not stop, keeping its buffers", address);
+            writeLock.lock();
+            try {
+                writeSpace.signalAll();
+            } finally {
+                writeLock.unlock();
+            }
+            return;
+        }
+        writeLock.lock();
+        try {
+            writeBuf = ByteBuffer.allocate(0);
+            readBuf = ByteBuffer.allocate(0);
+            writeSpace.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+        logger.info("Closed connection to {}", address);
+    }
+
+    /**
+     * Same as {@link #close(long, TimeUnit)}.
+     */
+    public void close(Duration timeout) throws InterruptedException {
+        close(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return true once {@link #close(long, TimeUnit)} was called
+     */
+    public boolean isClosed() {
+        return closing;
+    }
+
     private void send(ByteBuffer buffer) throws InterruptedException, IOException {
         if (!connected.get()) {
             throw new IOException("not connected");
         }
-        synchronized (writeBuf) {
+        WireCapture capture = this.capture;
+        if (capture != null) {
+            capture.record(WireCapture.OUTBOUND, buffer);
+        }
+        write(buffer);
+    }
+
+    /**
+     * Appends the buffer to the write buffer as a whole and tries to write it to the channel right away.
+     */
+    private void write(ByteBuffer buffer) throws InterruptedException, IOException {
+        writeLock.lockInterruptibly();
+        try {
             // try direct write of what's in the buffer to free up space
             if (writeBuf.remaining() < buffer.remaining()) {
                 writeBuf.flip();
@@ -92,16 +485,27 @@ public class Gateway implements Runnable {
                 logger.debug("Written {} bytes to the network", bytesTotal);
             }
 
+            if (!isEventLoop() && writeBuf.capacity() == 0) {
+                // released by close
+                throw new IOException("gateway closed");
+            }
             // if didn't help, wait till some space appears
-            if (Thread.currentThread().getId() != thread.getId()) {
+            if (!isEventLoop() && buffer.remaining() <= writeBuf.capacity()) {
                 while (writeBuf.remaining() < buffer.remaining()) {
-                    writeBuf.wait();
-                }
-            } else {
-                if (writeBuf.remaining() < buffer.remaining()) {
-                    throw new IOException("send buffer full"); // TODO: add reallocation or buffers chain
+                    if (closing) {
+                        throw new IOException("gateway closed");
+                    }
+                    writeSpace.await();
                 }
             }
+            if (writeBuf.remaining() < buffer.remaining()) {
+                // the event loop must not block on itself and a burst larger than the buffer would never fit, grow the
+                // buffer instead
+                ByteBuffer grown = ByteBuffer.allocateDirect(writeBuf.position() + buffer.remaining());
+                writeBuf.flip();
+                grown.put(writeBuf);
+                writeBuf = grown;
+            }
             writeBuf.put(buffer);
 
             // try direct write to decrease the latency
@@ -112,12 +516,15 @@ public class Gateway implements Runnable {
             }
             writeBuf.compact();
             logger.debug("Written {} bytes to the network", bytesTotal);
+            shrinkWriteBuffer();
 
             if (writeBuf.hasRemaining()) {
                 SelectionKey key = channel.keyFor(selector);
                 key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                 selector.wakeup();
             }
+        } finally {
+            writeLock.unlock();
         }
     }
 
@@ -136,7 +543,7 @@ public class Gateway implements Runnable {
     public void run() {
         logger.info("event loop running");
         try {
-            while (!Thread.interrupted()) { // reconnection loop
+            while (!Thread.interrupted() && !closing) { // reconnection loop
                 try {
                     selector = Selector.open();
                     channel = SocketChannel.open();
@@ -146,15 +553,25 @@ public class Gateway implements Runnable {
                     channel.register(selector, SelectionKey.OP_CONNECT);
 
                     while (!thread.isInterrupted() && channel.isOpen()) { // events multiplexing loop
-                        if (selector.select() > 0) {
+                        if (selector.select(HOUSEKEEPING_INTERVAL) > 0) {
                             processSelectedKeys(selector.selectedKeys());
                         }
+                        long now = System.nanoTime();
+                        housekeeping(now);
+                        if (closing && isDrained(now)) {
+                            break;
+                        }
                     }
                 } catch (Exception e) {
                     logger.error("exception", e);
                 } finally {
                     connected.set(false);
                     onDisconnected();
+                    GatewayProxy proxy = this.proxy;
+                    if (proxy != null) {
+                        proxy.closeClients();
+                    }
+                    pendingBursts.clear();
                     writeBuf.clear();
                     readBuf.clear();
                     if (channel != null) {
@@ -166,6 +583,9 @@ public class Gateway implements Runnable {
                     logger.info("connection closed");
                 }
 
+                if (closing) {
+                    break;
+                }
                 try {
                     Thread.sleep(reconnectInterval);
                     if (reconnectInterval < MAXIMUM_RECONNECT_INTERVAL) {
@@ -183,6 +603,95 @@ public class Gateway implements Runnable {
         logger.info("event loop terminated");
     }
 
+    private void housekeeping(long now) {
+        ByteBuffer burst;
+        while ((burst = pendingBursts.poll()) != null) {
+            try {
+                capture(burst);
+                write(burst);
+            } catch (IOException e) {
+                // the commands are retransmitted or failed once their deadline passes
+                logger.warn("Writing burst failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        heartbeat(now);
+        GatewayProxy proxy = this.proxy;
+        if (proxy != null) {
+            try {
+                proxy.register(selector);
+            } catch (IOException e) {
+                logger.warn("Registering proxy failed", e);
+            }
+            proxy.housekeeping();
+        }
+        inFlight.expire(now, this);
+    }
+
+    /**
+     * Sends a heartbeat if the connection was idle and closes the channel once too many heartbeats went unanswered, so
+     * the reconnection loop in {@link #run()} opens a new one. Any received frame counts as an answer.
+     */
+    private void heartbeat(long now) {
+        long interval = heartbeatInterval;
+        if (interval <= 0 || !connected.get()) {
+            return;
+        }
+        if (heartbeatSentAt != 0) {
+            long timeout = Math.max(TimeUnit.MILLISECONDS.toNanos(heartbeatTimeout),
+                    HEARTBEAT_ROUND_TRIPS * inFlight.getRoundTripTime());
+            if (now - heartbeatSentAt < timeout) {
+                return;
+            }
+            heartbeatSentAt = 0;
+            missedHeartbeats++;
+            logger.warn("No reply to heartbeat from {}, {} missed", address, missedHeartbeats);
+            if (missedHeartbeats >= maxMissedHeartbeats) {
+                logger.warn("Connection to {} is dead, reconnecting", address);
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.debug("Closing dead channel failed", e);
+                }
+                return;
+            }
+        } else if (now - lastReceived < TimeUnit.MILLISECONDS.toNanos(interval)) {
+            return;
+        }
+        Packet probe;
+        if (lights.isEmpty()) {
+            probe = new UpdateGroupsList();
+        } else {
+            probe = new UpdateLightStatus(lights.get(0).getAddress());
+        }
+        // counts as sent even if the window is full, a connection without replies is dead either way
+        heartbeatSentAt = now;
+        try {
+            sendAsync(probe);
+        } catch (IOException e) {
+            logger.debug("Heartbeat not sent", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if everything queued for writing has been written or the close deadline has passed
+     */
+    private boolean isDrained(long now) {
+        if (now - closeDeadline >= 0) {
+            return true;
+        }
+        writeLock.lock();
+        try {
+            return writeBuf.position() == 0 && pendingBursts.isEmpty();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
     private void onDisconnected() {
         logger.info("Disconnected from {}", address);
 
@@ -192,19 +701,36 @@ public class Gateway implements Runnable {
         Iterator<SelectionKey> itr = keys.iterator();
         while (itr.hasNext()) {
             SelectionKey key = itr.next();
+            itr.remove();
+            if (key.attachment() != null) {
+                processProxy(key);
+                continue;
+            }
             if (key.isReadable()) {
                 processRead(key);
             }
-            if (key.isWritable()) {
+            if (key.isValid() && key.isWritable()) {
                 processWrite(key);
             }
-            if (key.isConnectable()) {
+            if (key.isValid() && key.isConnectable()) {
                 processConnect(key);
             }
-            if (key.isAcceptable()) {
-                ;
-            }
-            itr.remove();
+        }
+    }
+
+    /**
+     * Handles the keys of the proxy server and its clients, which carry an attachment unlike the gateway channel.
+     */
+    private void processProxy(SelectionKey key) throws IOException {
+        GatewayProxy proxy = this.proxy;
+        if (proxy == null) {
+            key.channel().close();
+            return;
+        }
+        if (key.isAcceptable()) {
+            proxy.accept(key);
+        } else {
+            proxy.process(key);
         }
     }
 
@@ -214,6 +740,9 @@ public class Gateway implements Runnable {
             key.interestOps(key.interestOps() ^ SelectionKey.OP_CONNECT);
             key.interestOps(key.interestOps() | SelectionKey.OP_READ);
             reconnectInterval = INITIAL_RECONNECT_INTERVAL;
+            lastReceived = System.nanoTime();
+            heartbeatSentAt = 0;
+            missedHeartbeats = 0;
             connected.set(true);
             onConnected();
         }
@@ -234,64 +763,104 @@ public class Gateway implements Runnable {
         logger.debug("Read {} bytes from network", bytesTotal);
 
         if (bytesTotal > 0) {
+            lastReceived = System.nanoTime();
+            heartbeatSentAt = 0;
+            missedHeartbeats = 0;
             readBuf.flip();
             onRead(readBuf);
             readBuf.compact();
+            ensureReadCapacity();
         } else if (bytesOp == -1) {
             logger.info("peer closed read channel");
             ch.close();
         }
     }
 
-    private void onRead(ByteBuffer readBuf) {
+    /**
+     * Parses every complete frame between position and limit of the buffer in place. A trailing partial frame is left
+     * in the buffer for the next read.
+     */
+    void onRead(ByteBuffer readBuf) {
         readBuf.order(ByteOrder.LITTLE_ENDIAN);
-        if (readBuf.remaining() > 1 && expectedLength == -1) {
-            expectedLength = readBuf.getChar();
+        int limit = readBuf.limit();
+        while (readBuf.remaining() > 1) {
+            int start = readBuf.position();
+            int frameLength = readBuf.getChar(start) + 2;
+            if (readBuf.remaining() < frameLength) {
+                break;
+            }
+            readBuf.limit(start + frameLength);
+            ByteBuffer frame = readBuf.slice().order(ByteOrder.LITTLE_ENDIAN);
+            readBuf.limit(limit);
+            readBuf.position(start + frameLength);
+            WireCapture capture = this.capture;
+            if (capture != null) {
+                capture.record(WireCapture.INBOUND, frame);
+            }
+            parseData(frame);
         }
-        if (expectedLength != -1 && readBuf.limit() == expectedLength + 2) {
-            byte[] data = new byte[expectedLength + 2];
-            readBuf.position(0);
-            readBuf.get(data, 0, data.length);
-            parseData(byteBufferWrap(data, 0, expectedLength + 2));
-            expectedLength = -1;
+    }
+
+    /**
+     * Grows the read buffer if the partial frame at its start is larger than the buffer can hold, e.g. the status of
+     * several hundred lights.
+     */
+    private void ensureReadCapacity() {
+        if (readBuf.position() < 2) {
+            return;
+        }
+        int frameLength = readBuf.getChar(0) + 2;
+        if (frameLength > readBuf.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(frameLength);
+            grown.order(ByteOrder.LITTLE_ENDIAN);
+            readBuf.flip();
+            grown.put(readBuf);
+            readBuf = grown;
+            logger.debug("Increased read buffer to {} bytes", frameLength);
         }
     }
 
     private void parseData(ByteBuffer buf) {
-        buf.position(0);
+        // length, flag, command, three fixed bytes and the sequence number, then the status byte of the reply
+        if (buf.limit() < 9) {
+            logger.warn("Dropping malformed frame of {} bytes", buf.limit());
+            return;
+        }
         byte command = buf.get(3);
-        switch (command) {
-            case Packet.COMMAND_GROUP_LIST:
-                logger.debug("Received group list");
-                refreshGroups(buf);
-                break;
-            case Packet.COMMAND_GROUP_INFO:
-                logger.debug("Received group info");
-                updateGroupInfo(buf);
-                break;
-            case Packet.COMMAND_LIGHT_STATUS:
-                logger.debug("Received light status");
-                updateLight(buf);
-                break;
-            case Packet.COMMAND_ONOFF:
-                updateOnOff(buf);
-                break;
-            case Packet.COMMAND_LUMINANCE:
-                // TODO we don't seem to get information about new luminance, probably this can be solved
-                break;
-            case Packet.COMMAND_ALL_LIGHT_STATUS:
-                logger.debug("Received status for all lights");
-                updateAllLights(buf);
-                break;
-            default:
+        boolean success = buf.get(8) == 0x00;
+        byte sequence = buf.get(7);
+        GatewayProxy proxy = this.proxy;
+        Packet packet = proxy != null ? inFlight.getPacket(sequence) : null;
+        CommandFuture future = inFlight.acknowledge(sequence, success);
+        try {
+            PacketDecoder decoder = decoders.getDecoder(command);
+            if (decoder == null) {
                 logger.warn("Received unknown packet. Packet command {}", command);
-                logger.warn("Data: {}", buf.array());
+                if (logger.isDebugEnabled()) {
+                    byte[] data = new byte[buf.limit()];
+                    buf.get(data, 0, data.length);
+                    logger.debug("Data: {}", data);
+                }
+                return;
+            }
+            decoder.decode(this, buf);
+        } catch (RuntimeException e) {
+            logger.error("Decoder for packet command {} failed", command, e);
+        } finally {
+            // complete only after decoding so waiters see the new state
+            if (future != null) {
+                future.complete(success);
+            }
+            if (proxy != null) {
+                proxy.onReply(buf, future != null ? packet : null);
+            }
         }
     }
 
     private void processWrite(SelectionKey key) throws IOException {
         WritableByteChannel ch = (WritableByteChannel) key.channel();
-        synchronized (writeBuf) {
+        writeLock.lock();
+        try {
             writeBuf.flip();
 
             int bytesOp = 0, bytesTotal = 0;
@@ -305,18 +874,48 @@ public class Gateway implements Runnable {
             }
 
             if (bytesTotal > 0) {
-                writeBuf.notify();
+                writeSpace.signalAll();
             } else if (bytesOp == -1) {
                 logger.info("peer closed write channel");
                 ch.close();
             }
 
             writeBuf.compact();
+            shrinkWriteBuffer();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    int getWriteBufferCapacity() {
+        writeLock.lock();
+        try {
+            return writeBuf.capacity();
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    byte getSequence() {
-        return (byte) sequence.incrementAndGet();
+    /**
+     * Goes back to a buffer of the default size once a buffer grown for a large burst has been written out, so the
+     * burst does not pin its memory for the life of the connection. Must be called with the write lock held.
+     */
+    private void shrinkWriteBuffer() {
+        if (writeBuf.position() == 0 && writeBuf.capacity() > WRITE_BUFFER_SIZE) {
+            writeBuf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            logger.debug("Reduced write buffer to {} bytes", WRITE_BUFFER_SIZE);
+        }
+    }
+
+    private boolean isEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return the id of the event loop thread, e.g. to sample its CPU time or allocations
+     */
+    long getEventLoopId() {
+        return thread.getId();
     }
 
     void send(byte[] data) throws IOException, InterruptedException {
@@ -325,15 +924,201 @@ public class Gateway implements Runnable {
     }
 
     public void send(Packet packet) throws IOException, InterruptedException {
-        send(packet.serialize(getSequence()));
+        send(packet, false);
+    }
+
+    /**
+     * Sends a packet unless redundant command suppression is enabled, {@code force} is false and the packet would not
+     * change the recently confirmed state of its target.
+     *
+     * @return false if the packet was suppressed
+     */
+    public boolean send(Packet packet, boolean force) throws IOException, InterruptedException {
+        return sendAsync(packet, force) != null;
+    }
+
+    /**
+     * Sends a packet and returns without waiting for the reply. The packet is never suppressed as redundant.
+     *
+     * @return the future completed when the reply has been decoded
+     */
+    public CommandFuture sendAsync(Packet packet) throws IOException, InterruptedException {
+        return sendAsync(packet, true);
+    }
+
+    /**
+     * Like {@link #sendAsync(Packet)} but subject to redundant command suppression unless {@code force} is true.
+     *
+     * @return the future completed when the reply has been decoded, null if the packet was suppressed
+     */
+    public CommandFuture sendAsync(Packet packet, boolean force) throws IOException, InterruptedException {
+        Luminary target = packet.getTarget();
+        if (!force && target != null && isRedundant(packet, target)) {
+            logger.debug("Suppressing redundant command {} to {}", packet.command, target.getName());
+            suppressedCommands.incrementAndGet();
+            return null;
+        }
+        if (closing) {
+            throw new IOException("gateway closed");
+        }
+        if (!connected.get()) {
+            throw new IOException("not connected");
+        }
+        if (target != null && target.isRemoved()) {
+            throw new IOException(target.getName() + " was removed");
+        }
+        byte seq = inFlight.acquire(packet, !isEventLoop());
+        boolean sent = false;
+        CommandFuture future;
+        try {
+            byte[] frame = packet.serialize(seq);
+            long previous = 0, expected = 0;
+            if (target != null && optimisticUpdates) {
+                previous = target.applyCommand(packet);
+                expected = packet.applyTo(previous);
+            } else {
+                target = null;
+            }
+            future = inFlight.begin(seq, frame, System.nanoTime(),
+                    TimeUnit.MILLISECONDS.toNanos(confirmationTimeout), target, previous, expected);
+            journal(seq, frame, packet);
+            refreshPlanner.commanded(packet.getTarget());
+            send(frame);
+            sent = true;
+        } finally {
+            if (!sent) {
+                inFlight.release(seq);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Sends all packets with a single write so the gateway receives them back to back, e.g. to change the colour of
+     * many lights at visually the same time. Sequence numbers for all packets are reserved up front and the frames are
+     * encoded into one contiguous buffer before anything is written. Packets are never suppressed as redundant.
+     *
+     * @param nextTick
+     *            hold the burst back until the next housekeeping pass of the event loop instead of writing it right
+     *            away, so bursts prepared by several threads go out together
+     * @return the future of every packet in the order given
+     * @throws IllegalArgumentException
+     *             if there are more packets than the sequence window allows to be outstanding
+     */
+    public List<CommandFuture> sendBurst(List<? extends Packet> packets, boolean nextTick)
+            throws IOException, InterruptedException {
+        if (closing) {
+            throw new IOException("gateway closed");
+        }
+        if (!connected.get()) {
+            throw new IOException("not connected");
+        }
+        Packet[] batch = packets.toArray(new Packet[packets.size()]);
+        for (Packet packet : batch) {
+            if (packet.getTarget() != null && packet.getTarget().isRemoved()) {
+                throw new IOException(packet.getTarget().getName() + " was removed");
+            }
+        }
+        byte[] sequences = new byte[batch.length];
+        inFlight.acquire(batch, sequences, !isEventLoop());
+        List<CommandFuture> futures = new ArrayList<CommandFuture>(batch.length);
+        boolean sent = false;
+        try {
+            byte[][] frames = new byte[batch.length][];
+            int length = 0;
+            for (int i = 0; i < batch.length; i++) {
+                frames[i] = batch[i].serialize(sequences[i]);
+                length += frames[i].length;
+            }
+            // only copied into the write buffer, a heap buffer is much cheaper to allocate than a direct one
+            ByteBuffer burst = ByteBuffer.allocate(length);
+            long now = System.nanoTime();
+            long timeout = TimeUnit.MILLISECONDS.toNanos(confirmationTimeout + (nextTick ? HOUSEKEEPING_INTERVAL : 0));
+            for (int i = 0; i < batch.length; i++) {
+                Luminary target = optimisticUpdates ? batch[i].getTarget() : null;
+                long previous = 0, expected = 0;
+                if (target != null) {
+                    previous = target.applyCommand(batch[i]);
+                    expected = batch[i].applyTo(previous);
+                }
+                futures.add(inFlight.begin(sequences[i], frames[i], now, timeout, target, previous, expected));
+                journal(sequences[i], frames[i], batch[i]);
+                refreshPlanner.commanded(batch[i].getTarget());
+                burst.put(frames[i]);
+            }
+            burst.flip();
+            if (nextTick) {
+                pendingBursts.add(burst);
+            } else {
+                capture(burst);
+                write(burst);
+            }
+            sent = true;
+        } finally {
+            if (!sent) {
+                for (byte seq : sequences) {
+                    inFlight.release(seq);
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Records every frame of a burst into the wire capture, if any, right before the burst is written.
+     */
+    private void capture(ByteBuffer burst) {
+        WireCapture capture = this.capture;
+        if (capture == null) {
+            return;
+        }
+        ByteBuffer frame = burst.duplicate();
+        int pos = burst.position();
+        while (pos < burst.limit()) {
+            int length = ((burst.get(pos) & 0xFF) | (burst.get(pos + 1) & 0xFF) << 8) + 2;
+            frame.limit(pos + length);
+            frame.position(pos);
+            capture.record(WireCapture.OUTBOUND, frame);
+            pos += length;
+        }
+    }
+
+    private void journal(byte sequence, byte[] frame, Packet packet) {
+        EventJournal journal = this.journal;
+        if (journal != null) {
+            Luminary target = packet.getTarget();
+            journal.appendCommand(sequence, frame, target != null ? target.getAddressKey() : 0);
+        }
+    }
+
+    /**
+     * Writes an already serialized frame again, used by the event loop for commands whose reply did not arrive.
+     */
+    void retransmit(byte[] frame) {
+        try {
+            logger.debug("Retransmitting command with sequence {}", frame[7]);
+            send(ByteBuffer.wrap(frame));
+        } catch (Exception e) {
+            logger.warn("Retransmission failed", e);
+        }
+    }
+
+    private boolean isRedundant(Packet packet, Luminary target) {
+        long maxAge = suppressionMaxAge;
+        // the state of a group only reflects commands sent to the group, not changes of its members
+        if (maxAge <= 0 || target.isGroup()) {
+            return false;
+        }
+        long state = target.getState();
+        if (packet.applyTo(state) != state || inFlight.isPending(target)) {
+            return false;
+        }
+        long confirmedAt = target.getConfirmedAt();
+        return confirmedAt != 0 && System.nanoTime() - confirmedAt <= TimeUnit.MILLISECONDS.toNanos(maxAge);
     }
 
-    ByteBuffer byteBufferWrap(byte[] data, int pos, int len) {
-        ByteBuffer buf = ByteBuffer.allocate(len);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
-        buf.put(data, pos, len);
-        buf.position(0);
-        return buf;
+    boolean isPending(Luminary target) {
+        return inFlight.isPending(target);
     }
 
     public List<Group> getGroups() {
@@ -341,21 +1126,59 @@ public class Gateway implements Runnable {
     }
 
     public List<Group> refreshGroups() throws IOException, InterruptedException {
-        groups.clear();
         Packet command = new UpdateGroupsList();
-        send(command);
-        synchronized (groups) {
-            groups.wait();
+        sendAsync(command).await();
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Refreshes the group list and then the members of every group. The group info requests are sent back to back
+     * without waiting for the replies in between, the light to group index is rebuilt once all replies arrived.
+     *
+     * @throws IOException
+     *             if the group list or the info of any group could not be fetched
+     */
+    public List<Group> refreshAllGroupInfo() throws IOException, InterruptedException {
+        refreshGroups();
+        List<CommandFuture> pending = new ArrayList<CommandFuture>(groups.size());
+        IOException failure = null;
+        membership.beginBulkUpdate();
+        try {
+            for (Group g : groups) {
+                try {
+                    pending.add(sendAsync(new UpdateGroupInfo(g.getId())));
+                } catch (IOException e) {
+                    failure = e;
+                    break;
+                }
+            }
+            for (CommandFuture future : pending) {
+                try {
+                    if (!future.await()) {
+                        logger.warn("Gateway reported an error for a group info request");
+                    }
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+            }
+        } finally {
+            membership.endBulkUpdate();
+            // member changes during the refresh were applied with the old membership
+            for (Group g : groups) {
+                rebuildAggregate(g.getId(), g.getLights());
+            }
+        }
+        if (failure != null) {
+            throw failure;
         }
         return Collections.unmodifiableList(groups);
     }
 
     public List<Light> refreshAllLights() throws IOException, InterruptedException {
         Packet command = new UpdateAllLightStatus();
-        send(command);
-        synchronized (lights) {
-            lights.wait();
-        }
+        sendAsync(command).await();
         return Collections.unmodifiableList(lights);
     }
 
@@ -366,31 +1189,25 @@ public class Gateway implements Runnable {
 
         for (int i = 0; i < count; i++) {
             int pos = 11 + i * 50;
-            ByteBuffer payload = byteBufferWrap(buf.array(), pos, 50);
-            byte[] addr = new byte[8];
-            payload.position(2);
-            payload.get(addr, 0, 8);
-
-            Light l = getLightByAddress(addr);
+            Light l = findLight(buf.getLong(pos + 2));
             if (l == null) {
-                l = new Light(this, addr);
-                lights.add(l);
+                l = new Light(this, readAddress(buf, pos + 2));
+                addLight(l);
             }
-            l.update(payload);
-        }
-
-        synchronized (lights) {
-            lights.notify();
+            l.update(buf, pos);
         }
     }
 
     private void updateOnOff(ByteBuffer buf) {
-        byte[] addr = new byte[8];
-        buf.position(11);
-        buf.get(addr, 0, 8);
-        Luminary lum = getLuminary(addr);
+        long key = buf.getLong(11);
+        Luminary lum;
+        if (key >>> 8 == 0) {
+            lum = getGroupById((int) key);
+        } else {
+            lum = findLight(key);
+        }
         if (lum == null) {
-            logger.error("Received data for unknown light {}", addr);
+            logger.error("Received data for unknown light {}", readAddress(buf, 11));
             return;
         }
 
@@ -400,19 +1217,12 @@ public class Gateway implements Runnable {
     }
 
     private void updateLight(ByteBuffer buf) {
-        byte[] addr = new byte[8];
-        buf.position(11);
-        buf.get(addr, 0, 8);
-        logger.debug("Updating light {}", addr);
-        Light l = getLightByAddress(addr);
+        Light l = findLight(buf.getLong(11));
         if (l == null) {
-            logger.error("Updating unknown light with address {}", addr);
+            logger.error("Updating unknown light with address {}", readAddress(buf, 11));
             return;
         }
         l.updateStatusData(buf);
-        synchronized (l) {
-            l.notify();
-        }
     }
 
     private void updateGroupInfo(ByteBuffer buf) {
@@ -420,42 +1230,112 @@ public class Gateway implements Runnable {
         logger.debug("Updating group {}", groupId);
         Group g = getGroupById(groupId);
         if (g == null) {
-            // FIXME determine the name
+            // the name follows from the group info below
             g = new Group(this, "", groupId);
+            groups.add(g);
         }
-        g.updateInfo(byteBufferWrap(buf.array(), 11, buf.array().length - 11));
-        synchronized (g) {
-            g.notify();
-        }
+        g.updateInfo(buf, 11);
     }
 
     private void refreshGroups(ByteBuffer buf) {
         int groupCount = buf.getShort(9);
         logger.debug("Group count {}", groupCount);
+        BitSet listed = new BitSet();
         for (int i = 0; i < groupCount; i++) {
             int pos = 11 + i * 18;
-            ByteBuffer payload = byteBufferWrap(buf.array(), pos, 18);
-
-            int idx = payload.getShort();
-            Group g = getGroupById(idx);
+            Group g = getGroupById(buf.getShort(pos));
             if (g == null) {
-                g = new Group(this, payload);
+                g = new Group(this, buf, pos);
                 groups.add(g);
             } else {
-                g.update(payload);
+                g.update(buf, pos);
             }
+            listed.set(g.getId() & 0xFF);
         }
-        synchronized (groups) {
-            groups.notify();
+        for (Group g : groups) {
+            if (!listed.get(g.getId() & 0xFF)) {
+                logger.debug("Removing group {}", g.getId());
+                groups.remove(g);
+                membership.clearGroup(g.getId());
+                getAggregate(g.getId()).clear();
+                store.release(g);
+                refreshPlanner.released(g.getSlot());
+            }
         }
     }
 
     void addLight(Light l) {
-        if (!lights.contains(l)) {
+        if (lightsByAddress.get(l.getAddressKey()) == null) {
             lights.add(l);
+            lightsByAddress.put(l.getAddressKey(), l);
+            synchronized (lightSlots) {
+                lightSlots.set(l.getSlot());
+            }
         }
     }
 
+    MembershipIndex getMembership() {
+        return membership;
+    }
+
+    GroupAggregate getAggregate(int groupId) {
+        int id = groupId & 0xFF;
+        GroupAggregate aggregate = aggregates.get(id);
+        if (aggregate == null) {
+            aggregates.compareAndSet(id, null, new GroupAggregate());
+            aggregate = aggregates.get(id);
+        }
+        return aggregate;
+    }
+
+    /**
+     * Recomputes the aggregate of a group from scratch after its members changed.
+     */
+    void rebuildAggregate(int groupId, List<Light> members) {
+        store.rebuild(getAggregate(groupId), members);
+    }
+
+    /**
+     * Moves a light from its previous to its new state in the aggregates of all its groups. Called with the store
+     * locked, so it is never interleaved with {@link #rebuildAggregate(int, List)}.
+     */
+    void memberStateChanged(int slot, long previous, long state) {
+        for (int word = 0; word < MembershipIndex.words(); word++) {
+            long ids = membership.groupsOf(slot, word);
+            while (ids != 0) {
+                int id = word * 64 + Long.numberOfTrailingZeros(ids);
+                ids &= ids - 1;
+                GroupAggregate aggregate = aggregates.get(id);
+                if (aggregate != null) {
+                    aggregate.replace(previous, state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a query over all known lights of this gateway.
+     */
+    public LightQuery query() {
+        BitSet selection;
+        synchronized (lightSlots) {
+            selection = (BitSet) lightSlots.clone();
+        }
+        return new LightQuery(store, membership, selection);
+    }
+
+    Light findLight(long addressKey) {
+        return lightsByAddress.get(addressKey);
+    }
+
+    static byte[] readAddress(ByteBuffer buf, int pos) {
+        byte[] addr = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            addr[i] = buf.get(pos + i);
+        }
+        return addr;
+    }
+
     public List<Light> getLights() {
         return Collections.unmodifiableList(lights);
     }
@@ -495,13 +1375,7 @@ public class Gateway implements Runnable {
     }
 
     public Light getLightByAddress(byte[] addressBytes) {
-        Address address = new Address(addressBytes);
-        for (Light l : lights) {
-            if (l.getAddress().equals(address)) {
-                return l;
-            }
-        }
-        return null;
+        return findLight(Light.addressKey(addressBytes));
     }
 
     public Group getGroupById(int id) {
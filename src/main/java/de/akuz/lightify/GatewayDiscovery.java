@@ -0,0 +1,263 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds gateways by probing a port on every address of one or more IPv4 CIDR ranges. Connections are opened
+ * non-blocking on a single selector, many at a time, and every host that accepts is sent a group list request. Only
+ * hosts answering with a well formed group list reply are reported.
+ *
+ * <pre>
+ * List&lt;InetSocketAddress&gt; found = new GatewayDiscovery().scan("192.168.0.0/22");
+ * </pre>
+ */
+public class GatewayDiscovery {
+
+    private final static Logger logger = LoggerFactory.getLogger(GatewayDiscovery.class);
+
+    public static final int DEFAULT_PORT = 4000;
+    private static final long DEFAULT_CONNECT_TIMEOUT = 300; // 300 ms.
+    private static final long DEFAULT_HANDSHAKE_TIMEOUT = 1000; // 1 sec.
+    private static final int DEFAULT_MAX_CONCURRENT = 256;
+
+    // any value will do, the reply must echo it
+    private static final byte HANDSHAKE_SEQUENCE = 0x5a;
+
+    private int port = DEFAULT_PORT;
+    private long connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private long handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+    private int maxConcurrent = DEFAULT_MAX_CONCURRENT;
+
+    public GatewayDiscovery setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Sets how long a host has to accept the connection.
+     */
+    public GatewayDiscovery setConnectTimeout(long millis) {
+        this.connectTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Sets how long a host that accepted the connection has to answer the group list request.
+     */
+    public GatewayDiscovery setHandshakeTimeout(long millis) {
+        this.handshakeTimeout = millis;
+        return this;
+    }
+
+    /**
+     * Limits the number of connections open at the same time, bounded by the file descriptors of the process.
+     */
+    public GatewayDiscovery setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("at least one connection is needed");
+        }
+        this.maxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * Scans all host addresses of the given ranges, e.g. {@code "192.168.0.0/22"}. A plain address is scanned alone.
+     *
+     * @return the gateways found in the order they answered
+     */
+    public List<InetSocketAddress> scan(String... cidrs) throws IOException {
+        List<InetAddress> hosts = new ArrayList<InetAddress>();
+        for (String cidr : cidrs) {
+            hosts.addAll(hosts(cidr));
+        }
+        return scan(hosts);
+    }
+
+    public List<InetSocketAddress> scan(List<InetAddress> hosts) throws IOException {
+        List<InetSocketAddress> found = new ArrayList<InetSocketAddress>();
+        byte[] handshake = new UpdateGroupsList().serialize(HANDSHAKE_SEQUENCE);
+        Selector selector = Selector.open();
+        try {
+            int next = 0;
+            int open = 0;
+            while (next < hosts.size() || open > 0) {
+                long now = System.nanoTime();
+                while (open < maxConcurrent && next < hosts.size()) {
+                    if (start(selector, new InetSocketAddress(hosts.get(next++), port), handshake, now)) {
+                        open++;
+                    }
+                }
+                selector.select(10);
+                Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                while (itr.hasNext()) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    Probe probe = (Probe) key.attachment();
+                    Boolean result;
+                    try {
+                        result = probe.process(key);
+                    } catch (IOException e) {
+                        result = Boolean.FALSE;
+                    }
+                    if (result != null) {
+                        if (result) {
+                            logger.info("Found gateway at {}", probe.address);
+                            found.add(probe.address);
+                        }
+                        key.channel().close();
+                        open--;
+                    }
+                }
+                now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    if (key.isValid() && now - ((Probe) key.attachment()).deadline > 0) {
+                        key.channel().close();
+                        open--;
+                    }
+                }
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the probe was started and counts as open
+     */
+    private boolean start(Selector selector, InetSocketAddress address, byte[] handshake, long now) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Probe probe = new Probe(address, handshake, now + TimeUnit.MILLISECONDS.toNanos(connectTimeout));
+            if (channel.connect(address)) {
+                probe.connected(now);
+                channel.register(selector, SelectionKey.OP_WRITE, probe);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.debug("Probing {} failed: {}", address, e.getMessage());
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // nothing left to do
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return all host addresses of an IPv4 range, without network and broadcast address for ranges larger than two
+     *         addresses
+     */
+    static List<InetAddress> hosts(String cidr) throws UnknownHostException {
+        int slash = cidr.indexOf('/');
+        InetAddress base = InetAddress.getByName(slash < 0 ? cidr : cidr.substring(0, slash));
+        int prefix = slash < 0 ? 32 : Integer.parseInt(cidr.substring(slash + 1));
+        if (!(base instanceof Inet4Address) || prefix < 0 || prefix > 32) {
+            throw new IllegalArgumentException("not an IPv4 range: " + cidr);
+        }
+        byte[] b = base.getAddress();
+        long address = (b[0] & 0xFFL) << 24 | (b[1] & 0xFFL) << 16 | (b[2] & 0xFFL) << 8 | (b[3] & 0xFFL);
+        long size = 1L << (32 - prefix);
+        long first = address & ~(size - 1);
+        long last = first + size - 1;
+        if (size > 2) {
+            first++;
+            last--;
+        }
+        List<InetAddress> hosts = new ArrayList<InetAddress>((int) (last - first + 1));
+        for (long a = first; a <= last; a++) {
+            hosts.add(InetAddress.getByAddress(
+                    new byte[] { (byte) (a >>> 24), (byte) (a >>> 16), (byte) (a >>> 8), (byte) a }));
+        }
+        return hosts;
+    }
+
+    private class Probe {
+
+        final InetSocketAddress address;
+        final ByteBuffer out;
+        // only the header and the group count are checked
+        final ByteBuffer in = ByteBuffer.allocate(11).order(ByteOrder.LITTLE_ENDIAN);
+        long deadline;
+
+        Probe(InetSocketAddress address, byte[] handshake, long deadline) {
+            this.address = address;
+            this.out = ByteBuffer.wrap(handshake);
+            this.deadline = deadline;
+        }
+
+        void connected(long now) {
+            deadline = now + TimeUnit.MILLISECONDS.toNanos(handshakeTimeout);
+        }
+
+        /**
+         * @return true if the host is a gateway, false if it is not, null if the answer is not complete yet
+         */
+        Boolean process(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                connected(System.nanoTime());
+                key.interestOps(SelectionKey.OP_WRITE);
+                return null;
+            }
+            if (key.isWritable()) {
+                channel.write(out);
+                if (!out.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+                return null;
+            }
+            if (key.isReadable()) {
+                if (channel.read(in) < 0) {
+                    return Boolean.FALSE;
+                }
+                if (in.hasRemaining()) {
+                    return null;
+                }
+                return isGroupListReply(in);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the first 11 bytes of a reply echo the handshake and announce a group list of consistent length.
+     */
+    static boolean isGroupListReply(ByteBuffer buf) {
+        int length = buf.getChar(0) + 2;
+        if (buf.get(3) != Packet.COMMAND_GROUP_LIST || buf.get(7) != HANDSHAKE_SEQUENCE || buf.get(8) != 0x00) {
+            return false;
+        }
+        int count = buf.getShort(9);
+        return count >= 0 && length == 11 + count * 18;
+    }
+
+}
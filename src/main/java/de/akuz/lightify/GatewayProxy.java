@@ -0,0 +1,363 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lets any number of local clients share the single connection of a {@link Gateway}. Clients speak the gateway
+ * protocol, their commands are forwarded under a sequence number of the shared connection and the replies are sent
+ * back with the sequence number the client used. Group list and all light status queries are answered from the last
+ * reply seen on the shared connection while it is fresh.
+ *
+ * <p>
+ * Runs entirely on the event loop of the gateway, all methods except {@link #close()} must only be called from there.
+ */
+class GatewayProxy {
+
+    private final static Logger logger = LoggerFactory.getLogger(GatewayProxy.class);
+
+    private static final int CACHED_COMMANDS = 2;
+    private static final int GROUP_LIST = 0;
+    private static final int ALL_LIGHT_STATUS = 1;
+
+    private final Gateway gateway;
+    private final ServerSocketChannel server;
+    private final List<Client> clients = new ArrayList<Client>();
+
+    private volatile long cacheMaxAge;
+    private final byte[][] cachedReplies = new byte[CACHED_COMMANDS][];
+    private final long[] cachedAt = new long[CACHED_COMMANDS];
+
+    private volatile long served;
+    private volatile long forwarded;
+
+    GatewayProxy(Gateway gateway, SocketAddress bindAddress, long cacheMaxAge) throws IOException {
+        this.gateway = gateway;
+        this.cacheMaxAge = cacheMaxAge;
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(bindAddress);
+    }
+
+    SocketAddress getLocalAddress() {
+        return server.socket().getLocalSocketAddress();
+    }
+
+    void setCacheMaxAge(long millis) {
+        this.cacheMaxAge = millis;
+    }
+
+    long getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * Starts accepting clients on the given selector unless already registered with it. Called on every housekeeping
+     * pass because the gateway opens a new selector after every reconnect.
+     */
+    void register(Selector selector) throws IOException {
+        if (server.isOpen() && server.keyFor(selector) == null) {
+            server.register(selector, SelectionKey.OP_ACCEPT, this);
+        }
+    }
+
+    void accept(SelectionKey key) throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+        Client client = new Client(ch);
+        client.key = ch.register(key.selector(), SelectionKey.OP_READ, client);
+        clients.add(client);
+        logger.info("Proxy client connected from {}", ch.socket().getRemoteSocketAddress());
+    }
+
+    void process(SelectionKey key) {
+        Client client = (Client) key.attachment();
+        try {
+            if (key.isReadable()) {
+                client.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+                client.flush();
+            }
+        } catch (IOException e) {
+            logger.info("Proxy client disconnected: {}", e.getMessage());
+            client.close();
+        }
+    }
+
+    /**
+     * Handles a reply received on the shared connection.
+     *
+     * @param packet
+     *            the command the reply belongs to, null if it was not outstanding
+     */
+    void onReply(ByteBuffer frame, Packet packet) {
+        if (changesState(frame.get(3))) {
+            cachedReplies[ALL_LIGHT_STATUS] = null;
+        }
+        int cached = cacheIndex(frame.get(3));
+        if (cached >= 0 && frame.get(8) == 0x00) {
+            byte[] reply = new byte[frame.limit()];
+            for (int i = 0; i < reply.length; i++) {
+                reply[i] = frame.get(i);
+            }
+            cachedReplies[cached] = reply;
+            cachedAt[cached] = System.nanoTime();
+        }
+        if (packet instanceof ProxiedPacket) {
+            ProxiedPacket proxied = (ProxiedPacket) packet;
+            byte[] reply = new byte[frame.limit()];
+            for (int i = 0; i < reply.length; i++) {
+                reply[i] = frame.get(i);
+            }
+            proxied.restoreHeader(reply);
+            proxied.client.send(reply);
+        }
+    }
+
+    /**
+     * Forwards commands that could not get a sequence number earlier because the window was full.
+     */
+    void housekeeping() {
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).forwardPending();
+        }
+    }
+
+    /**
+     * Drops all clients, they have to reconnect once the shared connection is up again.
+     */
+    void closeClients() {
+        for (Client client : new ArrayList<Client>(clients)) {
+            client.close();
+        }
+        Arrays.fill(cachedReplies, null);
+    }
+
+    void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.debug("Closing proxy server failed", e);
+        }
+    }
+
+    long getServedFromCache() {
+        return served;
+    }
+
+    long getForwarded() {
+        return forwarded;
+    }
+
+    private static int cacheIndex(byte command) {
+        switch (command) {
+            case Packet.COMMAND_GROUP_LIST:
+                return GROUP_LIST;
+            case Packet.COMMAND_ALL_LIGHT_STATUS:
+                return ALL_LIGHT_STATUS;
+            default:
+                return -1;
+        }
+    }
+
+    private static boolean changesState(byte command) {
+        switch (command) {
+            case Packet.COMMAND_ONOFF:
+            case Packet.COMMAND_LUMINANCE:
+            case Packet.COMMAND_TEMP:
+            case Packet.COMMAND_COLOUR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return a copy of the cached reply to the command if there is one younger than the maximum age
+     */
+    private byte[] cachedReply(byte command) {
+        int index = cacheIndex(command);
+        long maxAge = cacheMaxAge;
+        if (index < 0 || maxAge <= 0 || cachedReplies[index] == null
+                || System.nanoTime() - cachedAt[index] > TimeUnit.MILLISECONDS.toNanos(maxAge)) {
+            return null;
+        }
+        return cachedReplies[index].clone();
+    }
+
+    private class Client {
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+        private final Queue<byte[]> pending = new ArrayDeque<byte[]>();
+
+        Client(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("closed by peer");
+            }
+            in.flip();
+            while (in.remaining() > 1) {
+                int start = in.position();
+                int length = in.getChar(start) + 2;
+                if (length < 8) {
+                    throw new IOException("malformed frame of " + length + " bytes");
+                }
+                if (in.remaining() < length) {
+                    break;
+                }
+                byte[] frame = new byte[length];
+                in.get(frame);
+                onFrame(frame);
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                // a single frame larger than the buffer
+                ByteBuffer grown = ByteBuffer.allocate(in.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+                in.flip();
+                grown.put(in);
+                in = grown;
+            }
+        }
+
+        private void onFrame(byte[] frame) {
+            byte command = frame[3];
+            if (changesState(command)) {
+                cachedReplies[ALL_LIGHT_STATUS] = null;
+            }
+            byte[] reply = cachedReply(command);
+            if (reply != null) {
+                System.arraycopy(frame, 4, reply, 4, 4);
+                served++;
+                send(reply);
+                return;
+            }
+            pending.add(frame);
+            forwardPending();
+        }
+
+        void forwardPending() {
+            byte[] frame;
+            while ((frame = pending.peek()) != null) {
+                try {
+                    gateway.sendAsync(new ProxiedPacket(this, frame));
+                } catch (IOException e) {
+                    // window full, try again on the next housekeeping pass
+                    return;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                pending.poll();
+                forwarded++;
+            }
+        }
+
+        void send(byte[] reply) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (out.remaining() < reply.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + reply.length));
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            out.put(reply);
+            try {
+                flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            out.flip();
+            channel.write(out);
+            out.compact();
+            if (key.isValid()) {
+                int ops = SelectionKey.OP_READ;
+                if (out.position() > 0) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+                key.interestOps(ops);
+            }
+        }
+
+        void close() {
+            clients.remove(this);
+            pending.clear();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Closing proxy client failed", e);
+            }
+        }
+    }
+
+    /**
+     * A command of a client forwarded unchanged except for the sequence number.
+     */
+    private static class ProxiedPacket extends Packet {
+
+        private final Client client;
+        private final byte[] frame;
+
+        ProxiedPacket(Client client, byte[] frame) {
+            super(frame[3], frame[2]);
+            this.client = client;
+            this.frame = frame;
+        }
+
+        @Override
+        public byte[] serialize(byte sequence) {
+            byte[] copy = frame.clone();
+            copy[7] = sequence;
+            return copy;
+        }
+
+        /**
+         * Puts the id the client used for its command into the reply.
+         */
+        void restoreHeader(byte[] reply) {
+            System.arraycopy(frame, 4, reply, 4, 4);
+        }
+
+        @Override
+        protected short getLength() {
+            return (short) (frame.length - 2);
+        }
+
+        @Override
+        protected byte[] getPayload() {
+            return Arrays.copyOfRange(frame, 8, frame.length);
+        }
+    }
+
+}
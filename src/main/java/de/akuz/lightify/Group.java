@@ -2,7 +2,6 @@ package de.akuz.lightify;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -15,43 +14,58 @@ public class Group extends Luminary {
 
     private int id;
 
-    private List<Light> lights = new ArrayList<Light>(128);
+    private List<Light> lights = new ArrayList<Light>();
 
-    Group(Gateway conn, ByteBuffer payload) {
+    Group(Gateway conn, ByteBuffer frame, int offset) {
         super(conn);
-        update(payload);
+        update(frame, offset);
     }
 
-    void update(ByteBuffer payload) {
-        payload.position(0);
-        id = payload.getShort();
-        CharBuffer nameBuf = nameCharset.decode(payload);
-        name = nameBuf.toString().trim();
+    /**
+     * Updates id and name from an 18 byte group list record starting at the given absolute offset.
+     */
+    void update(ByteBuffer frame, int offset) {
+        id = frame.getShort(offset);
+        updateName(frame, offset + 2, 16);
     }
 
-    void updateInfo(ByteBuffer payload) {
-        CharBuffer nameBuf = nameCharset.decode(byteBufferWrap(payload.array(), 0, 16));
-        this.name = nameBuf.toString();
+    /**
+     * Updates name and members from a group info payload starting at the given absolute offset.
+     */
+    void updateInfo(ByteBuffer frame, int offset) {
+        updateName(frame, offset, 16);
         logger.debug("Updating group name to {}", name);
-        int num = payload.get(16);
+        int num = frame.get(offset + 16) & 0xFF;
         logger.debug("Group info contains {} lights", num);
+        MembershipIndex membership = conn.getMembership();
+        membership.clearGroup(id);
+        lights.clear();
         for (int i = 0; i < num; i++) {
-            int pos = 17 + i * 8;
-            ByteBuffer lightPayload = byteBufferWrap(payload.array(), pos, 8);
-
-            byte[] addr = lightPayload.array();
-            logger.debug("Light address {}", addr);
-            Light l = conn.getLightByAddress(addr);
-            if (l != null) {
-                if (!lights.contains(l)) {
-                    lights.add(l);
-                }
-            } else {
+            int pos = offset + 17 + i * 8;
+            Light l = conn.findLight(frame.getLong(pos));
+            if (l == null) {
+                byte[] addr = Gateway.readAddress(frame, pos);
+                logger.debug("Light address {}", addr);
                 l = new Light(conn, addr);
-                lights.add(l);
                 conn.addLight(l);
             }
+            if (!membership.contains(id, l.getSlot())) {
+                membership.add(id, l.getSlot());
+                lights.add(l);
+            }
         }
+        conn.rebuildAggregate(id, lights);
+    }
+
+    /**
+     * @return the state derived from the members of this group, kept up to date as they change
+     */
+    public GroupAggregate getAggregate() {
+        return conn.getAggregate(id);
+    }
+
+    public boolean contains(Light light) {
+        return conn.getMembership().contains(id, light.getSlot());
     }
 
     Group(Gateway conn, String name, int id) {
@@ -66,16 +80,18 @@ public class Group extends Luminary {
 
     public void updateGroupInfo() throws IOException, InterruptedException {
         Packet command = new UpdateGroupInfo(id);
-        conn.send(command);
-        synchronized (this) {
-            this.wait();
-        }
+        conn.sendAsync(command).await();
     }
 
     public int getId() {
         return id;
     }
 
+    @Override
+    long getAddressKey() {
+        return id & 0xFF;
+    }
+
     @Override
     public byte[] getAddressBytes() {
         return new byte[] { (byte) id, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
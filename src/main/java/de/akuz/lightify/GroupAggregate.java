@@ -0,0 +1,169 @@
+package de.akuz.lightify;
+
+import java.util.Arrays;
+
+/**
+ * State derived from the members of a {@link Group}, as opposed to the state of the group itself, which only reflects
+ * commands sent to the group address. Kept up to date incrementally: every change of a member adds its new state and
+ * removes its old one, so reading is independent of the group size.
+ *
+ * <p>
+ * Luminance figures cover the members that are switched on, colour figures cover all members.
+ */
+public class GroupAggregate {
+
+    private int members;
+    private int on;
+
+    // members that are on by luminance, for min and max without a scan of the members
+    private final int[] luminances = new int[256];
+    private long luminanceSum;
+
+    private long redSum, greenSum, blueSum;
+    private long redSquares, greenSquares, blueSquares;
+
+    synchronized void add(long state) {
+        update(state, 1);
+    }
+
+    synchronized void remove(long state) {
+        update(state, -1);
+    }
+
+    synchronized void replace(long previous, long state) {
+        if (previous != state) {
+            update(previous, -1);
+            update(state, 1);
+        }
+    }
+
+    /**
+     * Replaces the totals with those of the given member states in one step.
+     */
+    synchronized void reset(long[] states) {
+        clear();
+        for (long state : states) {
+            update(state, 1);
+        }
+    }
+
+    synchronized void clear() {
+        members = 0;
+        on = 0;
+        Arrays.fill(luminances, 0);
+        luminanceSum = 0;
+        redSum = greenSum = blueSum = 0;
+        redSquares = greenSquares = blueSquares = 0;
+    }
+
+    private void update(long state, int delta) {
+        members += delta;
+        if (LightState.isOn(state)) {
+            int lum = LightState.getLuminance(state) & 0xFF;
+            on += delta;
+            luminances[lum] += delta;
+            luminanceSum += delta * lum;
+        }
+        int rgb = LightState.getRGB(state);
+        int r = rgb >>> 16, g = (rgb >>> 8) & 0xFF, b = rgb & 0xFF;
+        redSum += delta * r;
+        greenSum += delta * g;
+        blueSum += delta * b;
+        redSquares += delta * r * r;
+        greenSquares += delta * g * g;
+        blueSquares += delta * b * b;
+    }
+
+    public synchronized int getMemberCount() {
+        return members;
+    }
+
+    public synchronized int getOnCount() {
+        return on;
+    }
+
+    public synchronized boolean isAnyOn() {
+        return on > 0;
+    }
+
+    /**
+     * @return true if the group has members and all of them are on
+     */
+    public synchronized boolean isAllOn() {
+        return members > 0 && on == members;
+    }
+
+    /**
+     * @return the lowest luminance of the members that are on, 0 if none is
+     */
+    public synchronized int getMinLuminance() {
+        if (on == 0) {
+            return 0;
+        }
+        int lum = 0;
+        while (lum < luminances.length - 1 && luminances[lum] <= 0) {
+            lum++;
+        }
+        return lum;
+    }
+
+    /**
+     * @return the highest luminance of the members that are on, 0 if none is
+     */
+    public synchronized int getMaxLuminance() {
+        if (on == 0) {
+            return 0;
+        }
+        int lum = luminances.length - 1;
+        while (lum > 0 && luminances[lum] <= 0) {
+            lum--;
+        }
+        return lum;
+    }
+
+    /**
+     * @return the mean luminance of the members that are on, 0 if none is
+     */
+    public synchronized double getMeanLuminance() {
+        return on == 0 ? 0 : (double) luminanceSum / on;
+    }
+
+    /**
+     * @return the mean colour of all members as 0xRRGGBB
+     */
+    public synchronized int getMeanRGB() {
+        if (members == 0) {
+            return 0;
+        }
+        long half = members / 2;
+        return (int) ((redSum + half) / members) << 16 | (int) ((greenSum + half) / members) << 8
+                | (int) ((blueSum + half) / members);
+    }
+
+    /**
+     * @return the root mean square distance of the member colours from their mean in RGB space, 0 if all members
+     *         show the same colour
+     */
+    public synchronized double getColorSpread() {
+        if (members == 0) {
+            return 0;
+        }
+        double n = members;
+        double variance = (redSquares - redSum * (double) redSum / n) / n
+                + (greenSquares - greenSum * (double) greenSum / n) / n
+                + (blueSquares - blueSum * (double) blueSum / n) / n;
+        return variance <= 0 ? 0 : Math.sqrt(variance);
+    }
+
+    public synchronized boolean isColorUniform() {
+        return redSquares * members == redSum * redSum && greenSquares * members == greenSum * greenSum
+                && blueSquares * members == blueSum * blueSum;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "members=" + members + ", on=" + on + ", luminance=" + getMinLuminance() + "-" + getMaxLuminance()
+                + ", spread=" + String.format("%.1f", getColorSpread());
+    }
+
+}
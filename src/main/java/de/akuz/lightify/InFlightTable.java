@@ -0,0 +1,403 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks every command sent to the gateway by its 8 bit sequence number until the reply carrying the same sequence
+ * number arrives. At most {@code window} commands are outstanding, so a sequence number is never reused while a reply
+ * to it may still arrive. Commands without a reply before their deadline are retransmitted if they are idempotent and
+ * otherwise counted as lost.
+ *
+ * <p>
+ * If the command changed the cached state of its target optimistically, the change is confirmed by a successful reply
+ * and rolled back if the gateway reports an error or the command is lost.
+ */
+class InFlightTable {
+
+    static final int SEQUENCE_SPACE = 256;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowOpen = lock.newCondition();
+
+    private final Packet[] packets = new Packet[SEQUENCE_SPACE];
+    private final CommandFuture[] futures = new CommandFuture[SEQUENCE_SPACE];
+    private final byte[][] frames = new byte[SEQUENCE_SPACE][];
+    private final long[] deadlines = new long[SEQUENCE_SPACE];
+    private final long[] sentAt = new long[SEQUENCE_SPACE];
+    private final long[] timeouts = new long[SEQUENCE_SPACE];
+    private final int[] attempts = new int[SEQUENCE_SPACE];
+
+    private final Luminary[] targets = new Luminary[SEQUENCE_SPACE];
+    private final long[] previous = new long[SEQUENCE_SPACE];
+    private final long[] expected = new long[SEQUENCE_SPACE];
+
+    // only touched by the event loop in expire()
+    private final byte[][] retransmits = new byte[SEQUENCE_SPACE][];
+
+    private int window;
+    private int maxRetransmissions;
+    private int outstanding;
+    private int next;
+    private boolean closed;
+
+    private long sent;
+    private long acknowledged;
+    private long failed;
+    private long retransmitted;
+    private long lost;
+    // smoothed like the TCP retransmission timer, 0 until the first sample
+    private long roundTripTime;
+
+    InFlightTable(int window, int maxRetransmissions) {
+        setWindow(window);
+        this.maxRetransmissions = maxRetransmissions;
+    }
+
+    void setWindow(int window) {
+        if (window < 1 || window >= SEQUENCE_SPACE) {
+            throw new IllegalArgumentException("window must be between 1 and " + (SEQUENCE_SPACE - 1));
+        }
+        lock.lock();
+        try {
+            this.window = window;
+            windowOpen.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWindow() {
+        lock.lock();
+        try {
+            return window;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setMaxRetransmissions(int maxRetransmissions) {
+        lock.lock();
+        try {
+            this.maxRetransmissions = maxRetransmissions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMaxRetransmissions() {
+        lock.lock();
+        try {
+            return maxRetransmissions;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves a sequence number that is not used by any outstanding command.
+     *
+     * @param block
+     *            wait for a free slot if the window is full, otherwise fail
+     */
+    byte acquire(Packet packet, boolean block) throws IOException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (outstanding >= window) {
+                if (closed) {
+                    throw new IOException("gateway closed");
+                }
+                if (!block) {
+                    throw new IOException("sequence window full");
+                }
+                windowOpen.await();
+            }
+            while (packets[next] != null) {
+                next = (next + 1) & 0xFF;
+            }
+            int seq = next;
+            next = (next + 1) & 0xFF;
+            packets[seq] = packet;
+            outstanding++;
+            return (byte) seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves sequence numbers for all packets at once, so concurrent callers never hold part of the window each
+     * while waiting for the rest.
+     *
+     * @param sequences
+     *            receives the sequence number of each packet
+     * @param block
+     *            wait until the window has room for all packets, otherwise fail
+     */
+    void acquire(Packet[] batch, byte[] sequences, boolean block) throws IOException, InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (batch.length > window) {
+                throw new IllegalArgumentException(
+                        "cannot send " + batch.length + " commands at once with a window of " + window);
+            }
+            while (outstanding + batch.length > window) {
+                if (closed) {
+                    throw new IOException("gateway closed");
+                }
+                if (!block) {
+                    throw new IOException("sequence window full");
+                }
+                windowOpen.await();
+            }
+            for (int i = 0; i < batch.length; i++) {
+                while (packets[next] != null) {
+                    next = (next + 1) & 0xFF;
+                }
+                sequences[i] = (byte) next;
+                packets[next] = batch[i];
+                next = (next + 1) & 0xFF;
+                outstanding++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts tracking a command that is about to be written.
+     *
+     * @param target
+     *            the luminary changed optimistically by the command or null
+     * @return the future completed by the reply
+     */
+    CommandFuture begin(byte sequence, byte[] frame, long now, long timeout, Luminary target, long previousState,
+            long expectedState) {
+        CommandFuture future = new CommandFuture();
+        lock.lock();
+        try {
+            int i = sequence & 0xFF;
+            futures[i] = future;
+            frames[i] = frame;
+            timeouts[i] = timeout;
+            deadlines[i] = now + timeout;
+            sentAt[i] = now;
+            attempts[i] = 1;
+            targets[i] = target;
+            previous[i] = previousState;
+            expected[i] = expectedState;
+            sent++;
+        } finally {
+            lock.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * Handles the reply to the given sequence number. The returned future must be completed by the caller once the
+     * reply has been decoded.
+     *
+     * @return the future of the command the reply belongs to, null if it was not outstanding
+     */
+    CommandFuture acknowledge(byte sequence, boolean success) {
+        CommandFuture future;
+        Luminary target;
+        long previousState, expectedState;
+        lock.lock();
+        try {
+            int i = sequence & 0xFF;
+            future = futures[i];
+            if (future == null) {
+                return null;
+            }
+            target = targets[i];
+            previousState = previous[i];
+            expectedState = expected[i];
+            if (success) {
+                acknowledged++;
+            } else {
+                failed++;
+            }
+            // a reply to a retransmitted command cannot be matched to one attempt
+            if (attempts[i] == 1) {
+                long sample = System.nanoTime() - sentAt[i];
+                roundTripTime = roundTripTime == 0 ? sample : roundTripTime + (sample - roundTripTime) / 8;
+            }
+            remove(i);
+        } finally {
+            lock.unlock();
+        }
+        if (target != null) {
+            if (success) {
+                target.confirmState();
+            } else {
+                target.rollbackState(expectedState, previousState);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Releases a sequence number whose command could not be written and rolls back its optimistic change.
+     */
+    void release(byte sequence) {
+        Luminary target;
+        long previousState, expectedState;
+        lock.lock();
+        try {
+            int i = sequence & 0xFF;
+            if (packets[i] == null) {
+                return;
+            }
+            target = targets[i];
+            previousState = previous[i];
+            expectedState = expected[i];
+            if (futures[i] != null) {
+                sent--;
+            }
+            remove(i);
+        } finally {
+            lock.unlock();
+        }
+        if (target != null) {
+            target.rollbackState(expectedState, previousState);
+        }
+    }
+
+    /**
+     * Retransmits idempotent commands whose deadline has passed and gives up on the others. Must only be called by
+     * the event loop.
+     */
+    void expire(long now, Gateway gateway) {
+        int count = 0;
+        for (int i = 0; i < SEQUENCE_SPACE; i++) {
+            CommandFuture future;
+            Luminary target;
+            long previousState, expectedState;
+            lock.lock();
+            try {
+                if (futures[i] == null || deadlines[i] - now > 0) {
+                    continue;
+                }
+                if (attempts[i] <= maxRetransmissions && packets[i].isIdempotent()) {
+                    attempts[i]++;
+                    deadlines[i] = now + timeouts[i];
+                    retransmitted++;
+                    retransmits[count++] = frames[i];
+                    continue;
+                }
+                future = futures[i];
+                target = targets[i];
+                previousState = previous[i];
+                expectedState = expected[i];
+                lost++;
+                remove(i);
+            } finally {
+                lock.unlock();
+            }
+            if (target != null) {
+                target.rollbackState(expectedState, previousState);
+            }
+            future.fail(new IOException("no reply for command with sequence " + i));
+        }
+        for (int i = 0; i < count; i++) {
+            gateway.retransmit(retransmits[i]);
+            retransmits[i] = null;
+        }
+    }
+
+    /**
+     * Fails every outstanding command, rolls back its optimistic change and makes all current and future callers of
+     * {@link #acquire(Packet, boolean)} fail.
+     */
+    void close(IOException cause) {
+        CommandFuture[] failing = new CommandFuture[SEQUENCE_SPACE];
+        Luminary[] rollbacks = new Luminary[SEQUENCE_SPACE];
+        long[] previousStates = new long[SEQUENCE_SPACE];
+        long[] expectedStates = new long[SEQUENCE_SPACE];
+        lock.lock();
+        try {
+            closed = true;
+            for (int i = 0; i < SEQUENCE_SPACE; i++) {
+                if (packets[i] == null) {
+                    continue;
+                }
+                failing[i] = futures[i];
+                rollbacks[i] = targets[i];
+                previousStates[i] = previous[i];
+                expectedStates[i] = expected[i];
+                remove(i);
+            }
+            windowOpen.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < SEQUENCE_SPACE; i++) {
+            if (rollbacks[i] != null) {
+                rollbacks[i].rollbackState(expectedStates[i], previousStates[i]);
+            }
+            if (failing[i] != null) {
+                failing[i].fail(cause);
+            }
+        }
+    }
+
+    /**
+     * @return the command waiting for the reply with the given sequence number, null if there is none
+     */
+    Packet getPacket(byte sequence) {
+        lock.lock();
+        try {
+            return futures[sequence & 0xFF] != null ? packets[sequence & 0xFF] : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isPending(Luminary target) {
+        lock.lock();
+        try {
+            for (Luminary l : targets) {
+                if (l == target) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the smoothed round trip time in nanoseconds, 0 before the first reply
+     */
+    long getRoundTripTime() {
+        lock.lock();
+        try {
+            return roundTripTime;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    LinkStatistics getStatistics() {
+        lock.lock();
+        try {
+            return new LinkStatistics(sent, acknowledged, failed, retransmitted, lost, outstanding,
+                    roundTripTime);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void remove(int i) {
+        packets[i] = null;
+        futures[i] = null;
+        frames[i] = null;
+        targets[i] = null;
+        outstanding--;
+        windowOpen.signalAll();
+    }
+
+}
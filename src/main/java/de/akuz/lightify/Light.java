@@ -2,8 +2,10 @@ package de.akuz.lightify;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 public class Light extends Luminary {
 
@@ -32,37 +34,85 @@ public class Light extends Luminary {
     }
 
     private Address address;
+    private final long addressKey;
 
     public Light(Gateway conn, byte[] address) {
         super(conn);
         this.address = new Address(address);
+        this.addressKey = addressKey(address);
     }
 
+    /**
+     * The address as a little endian long, which is how it is read from a frame with {@link ByteBuffer#getLong(int)}.
+     */
+    static long addressKey(byte[] address) {
+        long key = 0;
+        for (int i = Math.min(address.length, 8) - 1; i >= 0; i--) {
+            key = (key << 8) | (address[i] & 0xFF);
+        }
+        return key;
+    }
+
+    /**
+     * Updates this light from a light status reply, which carries the status block after the address. Replies too short
+     * for the whole block only update the on/off state and do not confirm the cached state.
+     */
     void updateStatusData(ByteBuffer buf) {
-        if (buf.limit() > 20) {
+        if (buf.limit() >= 28) {
+            updateStatus(buf, 21);
+        } else if (buf.limit() > 21) {
             byte onByte = buf.get(21);
-            switchedOn = onByte == 0x01;
+            if (store.setOn(this, onByte == 0x01) == LightStateStore.RELEASED) {
+                return;
+            }
+            stateReported();
         }
     }
 
-    void update(ByteBuffer payload) {
-        CharBuffer nameBuf = nameCharset.decode(byteBufferWrap(payload.array(), 26, 16));
-        super.name = nameBuf.toString();
-        updateStatus(byteBufferWrap(payload.array(), 10, 16));
+    /**
+     * Updates this light from a 50 byte status record starting at the given absolute offset of a received frame.
+     */
+    void update(ByteBuffer frame, int offset) {
+        updateName(frame, offset + 26, 16);
+        updateStatus(frame, offset + 18);
     }
 
     public void update() throws IOException, InterruptedException {
         Packet updateStatus = new UpdateLightStatus(address);
-        conn.send(updateStatus);
-        synchronized (this) {
-            this.wait();
-        }
+        conn.sendAsync(updateStatus).await();
     }
 
     public Address getAddress() {
         return address;
     }
 
+    /**
+     * @return the groups this light is known to be a member of, see {@link Group#updateGroupInfo()}
+     */
+    public List<Group> getGroups() {
+        BitSet ids = conn.getMembership().groupsOf(slot);
+        List<Group> result = new ArrayList<Group>(ids.cardinality());
+        for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+            Group g = conn.getGroupById(id);
+            if (g != null) {
+                result.add(g);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    void stateChanged(long previous, long state) {
+        if (conn != null && previous != state) {
+            conn.memberStateChanged(slot, previous, state);
+        }
+    }
+
+    @Override
+    long getAddressKey() {
+        return addressKey;
+    }
+
     @Override
     public byte[] getAddressBytes() {
         return address.address;
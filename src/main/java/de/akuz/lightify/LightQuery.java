@@ -0,0 +1,103 @@
+package de.akuz.lightify;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Selects lights of a gateway by state and group membership. Every query starts with all lights of the gateway and
+ * each criterion narrows the selection. On/off and membership criteria are plain bitset operations, value criteria
+ * only inspect the lights still selected.
+ *
+ * <pre>
+ * List&lt;Light&gt; dim = gateway.query().inGroup(hallway).on().luminanceBelow(20).getLights();
+ * </pre>
+ */
+public class LightQuery {
+
+    private final LightStateStore store;
+    private final MembershipIndex membership;
+    private final BitSet selection;
+
+    LightQuery(LightStateStore store, MembershipIndex membership, BitSet lights) {
+        this.store = store;
+        this.membership = membership;
+        this.selection = lights;
+    }
+
+    public LightQuery on() {
+        selection.and(store.copyOn());
+        return this;
+    }
+
+    public LightQuery off() {
+        selection.andNot(store.copyOn());
+        return this;
+    }
+
+    public LightQuery inGroup(Group group) {
+        selection.and(membership.members(group.getId()));
+        return this;
+    }
+
+    public LightQuery notInGroup(Group group) {
+        selection.andNot(membership.members(group.getId()));
+        return this;
+    }
+
+    public LightQuery luminanceBelow(int value) {
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            if (store.getLuminance(i) >= value) {
+                selection.clear(i);
+            }
+        }
+        return this;
+    }
+
+    public LightQuery luminanceAtLeast(int value) {
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            if (store.getLuminance(i) < value) {
+                selection.clear(i);
+            }
+        }
+        return this;
+    }
+
+    public LightQuery temperatureBelow(int kelvin) {
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            if (store.getTemperature(i) >= kelvin) {
+                selection.clear(i);
+            }
+        }
+        return this;
+    }
+
+    public LightQuery temperatureAtLeast(int kelvin) {
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            if (store.getTemperature(i) < kelvin) {
+                selection.clear(i);
+            }
+        }
+        return this;
+    }
+
+    public int count() {
+        return selection.cardinality();
+    }
+
+    /**
+     * @return a copy of the selected {@link LightStateStore} slots
+     */
+    public BitSet toBitSet() {
+        return (BitSet) selection.clone();
+    }
+
+    public List<Light> getLights() {
+        List<Light> result = new ArrayList<Light>(selection.cardinality());
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            result.add((Light) store.getLuminary(i));
+        }
+        return result;
+    }
+
+}
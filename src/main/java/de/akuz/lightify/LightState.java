@@ -0,0 +1,59 @@
+package de.akuz.lightify;
+
+/**
+ * Packs the complete state of a luminary into a single long so it can be compared, stored and restored cheaply.
+ *
+ * <pre>
+ * bit  48     on
+ * bits 40-47  luminance
+ * bits 24-39  temperature
+ * bits 0-23   colour as 0xRRGGBB
+ * </pre>
+ */
+public final class LightState {
+
+    private static final long ON = 1L << 48;
+
+    private LightState() {
+    }
+
+    public static long pack(boolean on, byte luminance, short temperature, int rgb) {
+        return (on ? ON : 0) | (luminance & 0xFFL) << 40 | (temperature & 0xFFFFL) << 24 | (rgb & 0xFFFFFFL);
+    }
+
+    public static boolean isOn(long state) {
+        return (state & ON) != 0;
+    }
+
+    public static byte getLuminance(long state) {
+        return (byte) (state >>> 40);
+    }
+
+    public static short getTemperature(long state) {
+        return (short) (state >>> 24);
+    }
+
+    /**
+     * @return the colour as 0xRRGGBB
+     */
+    public static int getRGB(long state) {
+        return (int) (state & 0xFFFFFF);
+    }
+
+    public static long withOn(long state, boolean on) {
+        return on ? state | ON : state & ~ON;
+    }
+
+    public static long withLuminance(long state, byte luminance) {
+        return (state & ~(0xFFL << 40)) | (luminance & 0xFFL) << 40;
+    }
+
+    public static long withTemperature(long state, short temperature) {
+        return (state & ~(0xFFFFL << 24)) | (temperature & 0xFFFFL) << 24;
+    }
+
+    public static long withRGB(long state, byte red, byte green, byte blue) {
+        return (state & ~0xFFFFFFL) | (red & 0xFFL) << 16 | (green & 0xFFL) << 8 | (blue & 0xFFL);
+    }
+
+}
@@ -0,0 +1,276 @@
+package de.akuz.lightify;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Columnar storage for the state of lights and groups. Every {@link Luminary} owns a dense slot and reads and writes
+ * its on/off, luminance, temperature and colour through this store, so the state of a whole installation lives in a
+ * handful of primitive arrays. A single store can be shared by several gateways by passing it to
+ * {@link Gateway#Gateway(String, int, LightStateStore)}.
+ */
+public class LightStateStore {
+
+    /**
+     * Returned instead of the previous state by writes through a luminary that no longer owns its slot.
+     */
+    static final long RELEASED = -1;
+
+    private final BitSet on = new BitSet();
+    private final BitSet groups = new BitSet();
+    // slots released by removed luminaries, handed out again before new ones
+    private final BitSet free = new BitSet();
+
+    private byte[] lum;
+    private short[] temp;
+    private int[] rgb;
+    private long[] confirmed;
+    private Luminary[] owners;
+
+    private int size;
+
+    private volatile StateHistory history;
+
+    public LightStateStore() {
+        this(128);
+    }
+
+    public LightStateStore(int initialCapacity) {
+        int capacity = Math.max(initialCapacity, 1);
+        lum = new byte[capacity];
+        temp = new short[capacity];
+        rgb = new int[capacity];
+        confirmed = new long[capacity];
+        owners = new Luminary[capacity];
+    }
+
+    synchronized int allocate(Luminary owner) {
+        int reused = free.nextSetBit(0);
+        if (reused >= 0) {
+            free.clear(reused);
+            owners[reused] = owner;
+            if (owner.isGroup()) {
+                groups.set(reused);
+            }
+            return reused;
+        }
+        if (size == owners.length) {
+            int capacity = owners.length * 2;
+            lum = Arrays.copyOf(lum, capacity);
+            temp = Arrays.copyOf(temp, capacity);
+            rgb = Arrays.copyOf(rgb, capacity);
+            confirmed = Arrays.copyOf(confirmed, capacity);
+            owners = Arrays.copyOf(owners, capacity);
+        }
+        int slot = size++;
+        owners[slot] = owner;
+        if (owner.isGroup()) {
+            groups.set(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Clears the state of a removed luminary and makes its slot available to the next {@link #allocate(Luminary)}.
+     * The luminary keeps its last state, all writes through it are ignored from now on.
+     */
+    synchronized void release(Luminary owner) {
+        int slot = owner.getSlot();
+        if (owners[slot] != owner) {
+            return;
+        }
+        owner.detach(getState(slot));
+        owners[slot] = null;
+        on.clear(slot);
+        groups.clear(slot);
+        lum[slot] = 0;
+        temp[slot] = 0;
+        rgb[slot] = 0;
+        confirmed[slot] = 0;
+        free.set(slot);
+        StateHistory history = this.history;
+        if (history != null) {
+            history.clear(slot);
+        }
+    }
+
+    synchronized boolean isOn(int slot) {
+        return on.get(slot);
+    }
+
+    synchronized byte getLuminance(int slot) {
+        return lum[slot];
+    }
+
+    synchronized short getTemperature(int slot) {
+        return temp[slot];
+    }
+
+    /**
+     * @return the colour packed as 0x00RRGGBB
+     */
+    synchronized int getRGB(int slot) {
+        return rgb[slot];
+    }
+
+    synchronized long getState(int slot) {
+        return LightState.pack(on.get(slot), lum[slot], temp[slot], rgb[slot]);
+    }
+
+    /**
+     * Every write ends up here and calls {@link Luminary#stateChanged(long, long)} before the store is unlocked, so
+     * state derived from several luminaries, like a {@link GroupAggregate}, sees the changes in the order they were
+     * made.
+     *
+     * @return the state before the change, {@link #RELEASED} if the owner was removed
+     */
+    synchronized long setState(Luminary owner, long state) {
+        int slot = owner.getSlot();
+        if (owners[slot] != owner) {
+            return RELEASED;
+        }
+        long previous = getState(slot);
+        on.set(slot, LightState.isOn(state));
+        lum[slot] = LightState.getLuminance(state);
+        temp[slot] = LightState.getTemperature(state);
+        rgb[slot] = LightState.getRGB(state);
+        owner.stateChanged(previous, state);
+        return previous;
+    }
+
+    /**
+     * Applies the effect of a command in one step, so a status report stored at the same time is never overwritten
+     * with fields read before it arrived.
+     *
+     * @return the state before the change, the new state is {@link Packet#applyTo(long)} of it, {@link #RELEASED}
+     *         if the owner was removed
+     */
+    synchronized long apply(Luminary owner, Packet packet) {
+        long previous = getState(owner.getSlot());
+        return setState(owner, packet.applyTo(previous)) == RELEASED ? RELEASED : previous;
+    }
+
+    /**
+     * Changes the state only if it still is {@code expected}.
+     *
+     * @return true if the state was changed, false as well if the owner was removed
+     */
+    synchronized boolean compareAndSetState(Luminary owner, long expected, long state) {
+        if (getState(owner.getSlot()) != expected) {
+            return false;
+        }
+        return setState(owner, state) != RELEASED;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the state was last confirmed by the gateway, 0 if never
+     */
+    synchronized long getConfirmed(int slot) {
+        return confirmed[slot];
+    }
+
+    synchronized void setConfirmed(Luminary owner, long nanos) {
+        if (owners[owner.getSlot()] == owner) {
+            confirmed[owner.getSlot()] = nanos;
+        }
+    }
+
+    synchronized BitSet copyOn() {
+        return (BitSet) on.clone();
+    }
+
+    /**
+     * @return the state before the change, {@link #RELEASED} if the owner was removed
+     */
+    synchronized long setOn(Luminary owner, boolean state) {
+        return setState(owner, LightState.withOn(getState(owner.getSlot()), state));
+    }
+
+    /**
+     * @return the state before the change, {@link #RELEASED} if the owner was removed
+     */
+    synchronized long setStatus(Luminary owner, boolean state, byte luminance, short temperature, byte red,
+            byte green, byte blue) {
+        int colour = (red & 0xFF) << 16 | (green & 0xFF) << 8 | (blue & 0xFF);
+        return setState(owner, LightState.pack(state, luminance, temperature, colour));
+    }
+
+    /**
+     * Recomputes an aggregate from the current state of the given luminaries. Their changes reach the aggregates while
+     * the store is locked, so none is lost or counted twice by the rebuild.
+     */
+    synchronized void rebuild(GroupAggregate aggregate, List<? extends Luminary> members) {
+        long[] states = new long[members.size()];
+        for (int i = 0; i < states.length; i++) {
+            states[i] = getState(members.get(i).getSlot());
+        }
+        aggregate.reset(states);
+    }
+
+    /**
+     * Starts keeping the last {@code capacity} state changes reported by the gateway for every luminary of this store.
+     * The buffers for all current luminaries are allocated right away. Calling it again discards the recorded history.
+     */
+    public synchronized StateHistory enableHistory(int capacity) {
+        history = new StateHistory(capacity, owners.length);
+        return history;
+    }
+
+    public void disableHistory() {
+        history = null;
+    }
+
+    /**
+     * @return the recorded state changes, null unless enabled with {@link #enableHistory(int)}
+     */
+    public StateHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * @return the number of slots in use, lights and groups
+     */
+    public synchronized int size() {
+        return size - free.cardinality();
+    }
+
+    /**
+     * @return the luminary owning the slot, null if the slot was released
+     */
+    public synchronized Luminary getLuminary(int slot) {
+        return owners[slot];
+    }
+
+    /**
+     * @return the number of lights (not groups) in this store
+     */
+    public synchronized int countLights() {
+        return size - free.cardinality() - groups.cardinality();
+    }
+
+    /**
+     * @return the number of lights (not groups) that are switched on
+     */
+    public synchronized int countOn() {
+        BitSet lightsOn = (BitSet) on.clone();
+        lightsOn.andNot(groups);
+        return lightsOn.cardinality();
+    }
+
+    /**
+     * @return the mean luminance of all lights that are switched on, 0 if none is
+     */
+    public synchronized double averageLuminance() {
+        long sum = 0;
+        int count = 0;
+        for (int i = on.nextSetBit(0); i >= 0 && i < size; i = on.nextSetBit(i + 1)) {
+            if (!groups.get(i)) {
+                sum += lum[i];
+                count++;
+            }
+        }
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+}
@@ -0,0 +1,80 @@
+package de.akuz.lightify;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of the command counters of a {@link Gateway} connection.
+ */
+public class LinkStatistics {
+
+    private final long sent;
+    private final long acknowledged;
+    private final long failed;
+    private final long retransmitted;
+    private final long lost;
+    private final int outstanding;
+    private final long roundTripTime;
+
+    LinkStatistics(long sent, long acknowledged, long failed, long retransmitted, long lost, int outstanding,
+            long roundTripTime) {
+        this.sent = sent;
+        this.acknowledged = acknowledged;
+        this.failed = failed;
+        this.retransmitted = retransmitted;
+        this.lost = lost;
+        this.outstanding = outstanding;
+        this.roundTripTime = roundTripTime;
+    }
+
+    /**
+     * @return commands written, not counting retransmissions
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * @return commands the gateway replied to with an error
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getRetransmitted() {
+        return retransmitted;
+    }
+
+    /**
+     * @return commands that got no reply, including all retransmissions
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * @return commands currently waiting for their reply
+     */
+    public int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * @return the smoothed time between writing a command and receiving its reply in microseconds, 0 before the first
+     *         reply
+     */
+    public long getRoundTripMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(roundTripTime);
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + sent + ", acknowledged=" + acknowledged + ", failed=" + failed + ", retransmitted="
+                + retransmitted + ", lost=" + lost + ", outstanding=" + outstanding + ", rtt=" + getRoundTripMicros()
+                + "us";
+    }
+
+}
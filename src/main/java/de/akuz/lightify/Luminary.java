@@ -20,50 +20,101 @@ public abstract class Luminary {
 
     }
 
-    protected Gateway conn;
-
-    protected Charset nameCharset;
-
-    protected boolean switchedOn;
+    protected static final Charset nameCharset = Charset.forName("ASCII");
 
-    protected byte lum;
-    protected short temp;
+    protected Gateway conn;
 
-    protected byte red;
-    protected byte green;
-    protected byte blue;
+    protected final LightStateStore store;
+    protected final int slot;
 
     protected String name;
+    private byte[] nameBytes;
+
+    private Set<ChangeListener> listeners;
 
-    private Set<ChangeListener> listeners = new HashSet<Luminary.ChangeListener>();
+    // set by the store under its lock when the slot is released, the slot may belong to another luminary afterwards
+    private volatile boolean removed;
+    private volatile long removedState;
 
     Luminary(Gateway conn) {
         this.conn = conn;
-        nameCharset = Charset.forName("ASCII");
+        this.store = conn != null ? conn.getStateStore() : new LightStateStore(1);
+        this.slot = store.allocate(this);
     }
 
     public void registerListener(ChangeListener l) {
+        if (listeners == null) {
+            listeners = new HashSet<Luminary.ChangeListener>(4);
+        }
         this.listeners.add(l);
     }
 
     public void unregisterListener(ChangeListener l) {
-        this.listeners.remove(l);
+        if (listeners != null) {
+            this.listeners.remove(l);
+        }
     }
 
     public boolean isOn() {
-        return switchedOn;
+        return LightState.isOn(getState());
     }
 
     public int getLuminance() {
-        return lum;
+        return LightState.getLuminance(getState());
     }
 
     public int getTemperature() {
-        return temp;
+        return LightState.getTemperature(getState());
     }
 
     public byte[] getRGB() {
-        return new byte[] { red, green, blue };
+        int rgb = LightState.getRGB(getState());
+        return new byte[] { (byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb };
+    }
+
+    /**
+     * @return the slot of this luminary in its {@link LightStateStore}
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    /**
+     * @return the complete state packed as described in {@link LightState}, the state at the time of removal once
+     *         {@link #isRemoved() removed}
+     */
+    public long getState() {
+        if (!removed) {
+            long state = store.getState(slot);
+            // the slot may have been released and handed to another luminary while it was read
+            if (!removed) {
+                return state;
+            }
+        }
+        return removedState;
+    }
+
+    /**
+     * @return true once this luminary was removed, e.g. a group that is no longer in the group list of the gateway.
+     *         Its state no longer changes and commands to it fail.
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * Called by the store right before the slot is released.
+     */
+    void detach(long state) {
+        removedState = state;
+        removed = true;
+    }
+
+    /**
+     * @return true if a command sent to this luminary has not been acknowledged by the gateway yet
+     */
+    public boolean hasPendingChanges() {
+        return conn != null && conn.isPending(this);
     }
 
     public String getName() {
@@ -75,70 +126,311 @@ public abstract class Luminary {
     }
 
     public void setOn(boolean state) throws IOException, InterruptedException {
+        setOn(state, false);
+    }
+
+    /**
+     * @param force
+     *            send the command even if redundant command suppression would skip it
+     * @return false if the command was suppressed, see {@link Gateway#setRedundantCommandSuppression(long)}
+     */
+    public boolean setOn(boolean state, boolean force) throws IOException, InterruptedException {
         Packet command = new OnOffCommand(this, state);
-        conn.send(command);
+        return conn.send(command, force);
     }
 
     public void setLuminance(byte value, short time) throws IOException, InterruptedException {
+        setLuminance(value, time, false);
+    }
+
+    public boolean setLuminance(byte value, short time, boolean force) throws IOException, InterruptedException {
         Packet command = new SetLuminance(this, value, time);
-        conn.send(command);
+        return conn.send(command, force);
     }
 
     public void setColor(byte red, byte green, byte blue, short time) throws IOException, InterruptedException {
+        setColor(red, green, blue, time, false);
+    }
+
+    public boolean setColor(byte red, byte green, byte blue, short time, boolean force)
+            throws IOException, InterruptedException {
         Packet command = new SetColor(this, red, green, blue, time);
-        conn.send(command);
+        return conn.send(command, force);
+    }
+
+    /**
+     * @return hue (0-359), saturation (0-255) and value (0-255) of the current colour, see {@link ColorSpace}
+     */
+    public int[] getHSV() {
+        return ColorSpace.rgbToHSV(LightState.getRGB(getState()));
+    }
+
+    public void setHSV(int hue, int saturation, int value, short time) throws IOException, InterruptedException {
+        setHSV(hue, saturation, value, time, false);
+    }
+
+    public boolean setHSV(int hue, int saturation, int value, short time, boolean force)
+            throws IOException, InterruptedException {
+        return setColor(ColorSpace.hsvToRGB(hue, saturation, value), time, force);
+    }
+
+    /**
+     * @return the CIE 1931 chromaticity x and y of the current colour
+     */
+    public double[] getXY() {
+        return ColorSpace.rgbToXY(LightState.getRGB(getState()));
+    }
+
+    public void setXY(double x, double y, short time) throws IOException, InterruptedException {
+        setXY(x, y, time, false);
+    }
+
+    public boolean setXY(double x, double y, short time, boolean force) throws IOException, InterruptedException {
+        return setColor(ColorSpace.xyToRGB(x, y), time, force);
+    }
+
+    /**
+     * @return the colour temperature in Kelvin the current colour is closest to, for the white channel see
+     *         {@link #getTemperature()}
+     */
+    public int getColorKelvin() {
+        return ColorSpace.rgbToKelvin(LightState.getRGB(getState()));
+    }
+
+    /**
+     * Mixes white of the given temperature from the colour channels, for lamps without tunable white. Lamps with
+     * tunable white should use {@link #setTemperature(short, short)} instead, which takes Kelvin as well.
+     */
+    public void setColorKelvin(int kelvin, short time) throws IOException, InterruptedException {
+        setColorKelvin(kelvin, time, false);
+    }
+
+    public boolean setColorKelvin(int kelvin, short time, boolean force) throws IOException, InterruptedException {
+        return setColor(ColorSpace.kelvinToRGB(kelvin), time, force);
+    }
+
+    private boolean setColor(int rgb, short time, boolean force) throws IOException, InterruptedException {
+        return setColor((byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb, time, force);
     }
 
     public void setTemperature(short temp, short time) throws IOException, InterruptedException {
+        setTemperature(temp, time, false);
+    }
+
+    public boolean setTemperature(short temp, short time, boolean force) throws IOException, InterruptedException {
         Packet command = new SetTemperature(this, temp, time);
-        conn.send(command);
+        return conn.send(command, force);
     }
 
     public abstract byte[] getAddressBytes();
 
+    /**
+     * @return the address as used in the key of {@link Gateway#findLight(long)}, the group id for groups
+     */
+    abstract long getAddressKey();
+
     protected void notifySwitchedOnChanged(boolean state) {
+        if (listeners == null) {
+            return;
+        }
         for (ChangeListener l : listeners) {
             l.luminarySwitchedOnUpdated(this, state);
         }
     }
 
     protected void notifyLuminanceChanged(short luminance) {
+        if (listeners == null) {
+            return;
+        }
         for (ChangeListener l : listeners) {
             l.luminaryLuminanceUpdated(this, luminance);
         }
     }
 
     protected void notifyTemperatureChanged(short temperature) {
+        if (listeners == null) {
+            return;
+        }
         for (ChangeListener l : listeners) {
             l.luminaryTemperatureUpdated(this, temperature);
         }
     }
 
     protected void notifyColorChanged(byte red, byte green, byte blue) {
+        if (listeners == null) {
+            return;
+        }
         for (ChangeListener l : listeners) {
             l.luminaryColorUpdated(this, red, green, blue);
         }
     }
 
-    protected ByteBuffer byteBufferWrap(byte[] data, int pos, int len) {
-        return conn.byteBufferWrap(data, pos, len);
+    /**
+     * Updates the name from a zero padded name field at the given absolute position. The name is only decoded if the
+     * raw bytes differ from the ones seen last time.
+     */
+    void updateName(ByteBuffer buf, int pos, int len) {
+        if (nameBytes != null && nameBytes.length == len) {
+            boolean same = true;
+            for (int i = 0; i < len; i++) {
+                if (nameBytes[i] != buf.get(pos + i)) {
+                    same = false;
+                    break;
+                }
+            }
+            if (same) {
+                return;
+            }
+        } else {
+            nameBytes = new byte[len];
+        }
+        int end = 0;
+        for (int i = 0; i < len; i++) {
+            nameBytes[i] = buf.get(pos + i);
+            if (nameBytes[i] != 0x00 && end == i) {
+                end = i + 1;
+            }
+        }
+        name = new String(nameBytes, 0, end, nameCharset).trim();
+    }
+
+    /**
+     * Applies a complete state and notifies listeners about the parts that changed.
+     */
+    void applyState(long state) {
+        long previous = store.setState(this, state);
+        if (previous != LightStateStore.RELEASED) {
+            changed(previous, state);
+        }
+    }
+
+    /**
+     * Applies the effect of a command to the current state in one step and notifies listeners about the parts that
+     * changed.
+     *
+     * @return the state before the command, the new state is {@link Packet#applyTo(long)} of it
+     * @throws IOException
+     *             if this luminary was removed
+     */
+    long applyCommand(Packet packet) throws IOException {
+        long previous = store.apply(this, packet);
+        if (previous == LightStateStore.RELEASED) {
+            throw new IOException(name + " was removed");
+        }
+        changed(previous, packet.applyTo(previous));
+        return previous;
+    }
+
+    private void changed(long previous, long state) {
+        if (LightState.getRGB(previous) != LightState.getRGB(state)) {
+            int rgb = LightState.getRGB(state);
+            notifyColorChanged((byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb);
+        }
+        if (LightState.getLuminance(previous) != LightState.getLuminance(state)) {
+            notifyLuminanceChanged(LightState.getLuminance(state));
+        }
+        if (LightState.getTemperature(previous) != LightState.getTemperature(state)) {
+            notifyTemperatureChanged(LightState.getTemperature(state));
+        }
+        if (LightState.isOn(previous) != LightState.isOn(state)) {
+            notifySwitchedOnChanged(LightState.isOn(state));
+        }
+    }
+
+    /**
+     * Restores the previous state, unless the state was changed again after the optimistic update.
+     */
+    void rollbackState(long expected, long previous) {
+        if (store.compareAndSetState(this, expected, previous)) {
+            changed(expected, previous);
+        }
+    }
+
+    /**
+     * Records that the cached state matches the gateway as of now.
+     */
+    void confirmState() {
+        store.setConfirmed(this, System.nanoTime());
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} the state was last confirmed by the gateway, 0 if never
+     */
+    long getConfirmedAt() {
+        if (!removed) {
+            long confirmedAt = store.getConfirmed(slot);
+            if (!removed) {
+                return confirmedAt;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the state just reported by the gateway to the history of the store and the journal of the gateway if they
+     * are enabled.
+     */
+    void stateReported() {
+        StateHistory history = store.getHistory();
+        EventJournal journal = conn != null ? conn.getJournal() : null;
+        if (history == null && journal == null) {
+            return;
+        }
+        long state = store.getState(slot);
+        if (history != null) {
+            history.record(slot, System.currentTimeMillis(), state);
+        }
+        if (journal != null) {
+            journal.appendState(getAddressKey(), state);
+        }
+    }
+
+    /**
+     * Copies the state changes reported between {@code from} and {@code to} (milliseconds since the epoch) into the
+     * given arrays, see {@link StateHistory#query(int, long, long, long[], long[])}.
+     *
+     * @return the number of entries copied, 0 if the store keeps no history or this luminary was removed
+     */
+    public int getHistory(long from, long to, long[] times, long[] states) {
+        StateHistory history = store.getHistory();
+        return history == null || removed ? 0 : history.query(slot, from, to, times, states);
+    }
+
+    /**
+     * Called after every change of the cached state, whether optimistic or reported by the gateway. The store is
+     * locked during the call, see {@link LightStateStore#setState(Luminary, long)}.
+     */
+    void stateChanged(long previous, long state) {
     }
 
     void updateOn(boolean state) {
-        this.switchedOn = state;
+        if (store.setOn(this, state) == LightStateStore.RELEASED) {
+            return;
+        }
+        // only the on/off state was reported, the rest stays unconfirmed
+        stateReported();
         notifySwitchedOnChanged(state);
     }
 
-    void updateStatus(ByteBuffer payload) {
-        payload.position(8);
-        byte onByte = payload.get();
-        lum = payload.get();
-        temp = payload.getShort();
-        red = payload.get();
-        green = payload.get();
-        blue = payload.get();
-
-        switchedOn = onByte == 0x01;
+    /**
+     * Reads the status block (on, luminance, temperature, red, green, blue) at the given absolute position without
+     * touching the buffer position.
+     */
+    void updateStatus(ByteBuffer buf, int pos) {
+        boolean switchedOn = buf.get(pos) == 0x01;
+        byte lum = buf.get(pos + 1);
+        short temp = buf.getShort(pos + 2);
+        byte red = buf.get(pos + 4);
+        byte green = buf.get(pos + 5);
+        byte blue = buf.get(pos + 6);
+        if (store.setStatus(this, switchedOn, lum, temp, red, green, blue) == LightStateStore.RELEASED) {
+            return;
+        }
+        confirmState();
+        stateReported();
+        if (conn != null) {
+            conn.getRefreshPlanner().reported(slot, System.nanoTime());
+        }
 
         notifyColorChanged(red, green, blue);
         notifyLuminanceChanged(lum);
@@ -0,0 +1,122 @@
+package de.akuz.lightify;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Group membership kept as bitsets in both directions: the slots of the lights in every group and the ids of the
+ * groups of every light. Group ids are the single address byte used on the wire.
+ *
+ * <p>
+ * Between {@link #beginBulkUpdate()} and {@link #endBulkUpdate()} only the members of the groups are maintained and the
+ * groups of every light are rebuilt from them in one pass at the end.
+ */
+class MembershipIndex {
+
+    private static final int GROUP_IDS = 256;
+    private static final int WORDS_PER_SLOT = GROUP_IDS / 64;
+
+    private final BitSet[] members = new BitSet[GROUP_IDS];
+    private long[] groupsBySlot = new long[WORDS_PER_SLOT * 128];
+    private int bulkUpdates;
+
+    synchronized void add(int groupId, int slot) {
+        int id = groupId & 0xFF;
+        if (members[id] == null) {
+            members[id] = new BitSet();
+        }
+        members[id].set(slot);
+        if (bulkUpdates > 0) {
+            return;
+        }
+        int word = slot * WORDS_PER_SLOT + (id >>> 6);
+        if (word >= groupsBySlot.length) {
+            groupsBySlot = Arrays.copyOf(groupsBySlot, Math.max(groupsBySlot.length * 2, word + WORDS_PER_SLOT));
+        }
+        groupsBySlot[word] |= 1L << id;
+    }
+
+    synchronized void clearGroup(int groupId) {
+        int id = groupId & 0xFF;
+        BitSet slots = members[id];
+        if (slots == null) {
+            return;
+        }
+        if (bulkUpdates > 0) {
+            slots.clear();
+            return;
+        }
+        for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+            groupsBySlot[slot * WORDS_PER_SLOT + (id >>> 6)] &= ~(1L << id);
+        }
+        slots.clear();
+    }
+
+    synchronized void beginBulkUpdate() {
+        bulkUpdates++;
+    }
+
+    synchronized void endBulkUpdate() {
+        if (--bulkUpdates > 0) {
+            return;
+        }
+        int maxSlot = -1;
+        for (BitSet slots : members) {
+            if (slots != null) {
+                maxSlot = Math.max(maxSlot, slots.length() - 1);
+            }
+        }
+        int words = (maxSlot + 1) * WORDS_PER_SLOT;
+        if (words > groupsBySlot.length) {
+            groupsBySlot = new long[Math.max(groupsBySlot.length * 2, words)];
+        } else {
+            Arrays.fill(groupsBySlot, 0L);
+        }
+        for (int id = 0; id < GROUP_IDS; id++) {
+            BitSet slots = members[id];
+            if (slots == null) {
+                continue;
+            }
+            for (int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1)) {
+                groupsBySlot[slot * WORDS_PER_SLOT + (id >>> 6)] |= 1L << id;
+            }
+        }
+    }
+
+    synchronized boolean contains(int groupId, int slot) {
+        BitSet slots = members[groupId & 0xFF];
+        return slots != null && slots.get(slot);
+    }
+
+    /**
+     * @return 64 of the group ids of the light in the given slot as a bit mask, starting at {@code word * 64}
+     */
+    synchronized long groupsOf(int slot, int word) {
+        int index = slot * WORDS_PER_SLOT + word;
+        return index < groupsBySlot.length ? groupsBySlot[index] : 0;
+    }
+
+    static int words() {
+        return WORDS_PER_SLOT;
+    }
+
+    /**
+     * @return a copy of the slots of all lights in the group
+     */
+    synchronized BitSet members(int groupId) {
+        BitSet slots = members[groupId & 0xFF];
+        return slots == null ? new BitSet() : (BitSet) slots.clone();
+    }
+
+    /**
+     * @return a copy of the ids of all groups the light in the given slot belongs to
+     */
+    synchronized BitSet groupsOf(int slot) {
+        int from = slot * WORDS_PER_SLOT;
+        if (from >= groupsBySlot.length) {
+            return new BitSet();
+        }
+        return BitSet.valueOf(Arrays.copyOfRange(groupsBySlot, from, from + WORDS_PER_SLOT));
+    }
+
+}
@@ -13,6 +13,21 @@ public class OnOffCommand extends Packet {
         this.switchOn = switchOn;
     }
 
+    @Override
+    Luminary getTarget() {
+        return lum;
+    }
+
+    @Override
+    long applyTo(long state) {
+        return LightState.withOn(state, switchOn);
+    }
+
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH + 9;
@@ -35,6 +35,28 @@ public abstract class Packet {
         return buf.array();
     }
 
+    /**
+     * @return the luminary whose state this packet changes, null for queries
+     */
+    Luminary getTarget() {
+        return null;
+    }
+
+    /**
+     * @return the state the target has once the gateway executed this packet
+     */
+    long applyTo(long state) {
+        return state;
+    }
+
+    /**
+     * @return true if sending this packet twice has the same effect as sending it once, so it can be retransmitted
+     *         when its reply is lost
+     */
+    protected boolean isIdempotent() {
+        return false;
+    }
+
     protected abstract short getLength();
 
     protected abstract byte[] getPayload();
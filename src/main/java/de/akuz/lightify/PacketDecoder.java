@@ -0,0 +1,18 @@
+package de.akuz.lightify;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes replies of one command byte. Register implementations with
+ * {@link Gateway#registerDecoder(byte, Class, PacketDecoder)} to support responses the library does not know.
+ */
+public interface PacketDecoder {
+
+    /**
+     * Called on the event loop for every received frame with the command byte this decoder is registered for. The
+     * frame is little endian and spans exactly one frame starting at index 0, including the two length bytes. Read it
+     * with absolute offsets, it is only valid during this call.
+     */
+    public void decode(Gateway gateway, ByteBuffer frame);
+
+}
@@ -0,0 +1,221 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Refreshes only the lights whose cached state is likely out of date instead of polling the status of the whole
+ * installation, see {@link Gateway#getRefreshPlanner()}. A light is stale if
+ * <ul>
+ * <li>a command was sent to it or to one of its groups since its status was last reported, whether the command was
+ * acknowledged, failed or lost,</li>
+ * <li>its status was never reported or not within the maximum age.</li>
+ * </ul>
+ * {@link #refresh()} queries the stale lights one by one, pipelined without waiting for the replies in between, unless
+ * a single all light status query is estimated to be cheaper. Lights with a command still outstanding are left for the
+ * next refresh because their reply is about to change the state anyway.
+ *
+ * <p>
+ * The estimate counts the bytes on the wire: a light status query is a 16 byte request and a 28 byte reply, the all
+ * light status query an 8 byte request and a reply of 11 bytes plus 50 for every light. Every query additionally costs
+ * {@link #setRequestCost(int) a fixed amount} for the TCP/IP headers and the processing in the gateway.
+ */
+public class RefreshPlanner {
+
+    private final static Logger logger = LoggerFactory.getLogger(RefreshPlanner.class);
+
+    static final int LIGHT_STATUS_BYTES = 16 + 28;
+    static final int ALL_LIGHT_STATUS_BYTES = 8 + 11;
+    static final int ALL_LIGHT_STATUS_BYTES_PER_LIGHT = 50;
+
+    private static final long DEFAULT_MAX_AGE = 60000; // 1 min.
+    private static final int DEFAULT_REQUEST_COST = 80;
+
+    private final Gateway gateway;
+
+    private final BitSet dirty = new BitSet();
+    private final BitSet reported = new BitSet();
+    private long[] reportedAt = new long[128];
+
+    private volatile long maxAge = DEFAULT_MAX_AGE;
+    private volatile int requestCost = DEFAULT_REQUEST_COST;
+
+    private final AtomicLong singleQueries = new AtomicLong();
+    private final AtomicLong bulkQueries = new AtomicLong();
+
+    RefreshPlanner(Gateway gateway) {
+        this.gateway = gateway;
+    }
+
+    /**
+     * Sets how long a reported status stays fresh, 0 to only refresh lights that were commanded or never reported.
+     */
+    public void setMaxAge(long millis) {
+        this.maxAge = millis;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Sets the cost of a query on top of its frames in bytes.
+     */
+    public void setRequestCost(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("cost must not be negative");
+        }
+        this.requestCost = bytes;
+    }
+
+    public int getRequestCost() {
+        return requestCost;
+    }
+
+    /**
+     * @return the number of light status queries sent by {@link #refresh()}
+     */
+    public long getSingleQueries() {
+        return singleQueries.get();
+    }
+
+    /**
+     * @return the number of all light status queries sent by {@link #refresh()}
+     */
+    public long getBulkQueries() {
+        return bulkQueries.get();
+    }
+
+    /**
+     * Marks the target of a command as stale, for a group all its known members.
+     */
+    void commanded(Luminary target) {
+        if (target == null) {
+            return;
+        }
+        if (target.isGroup()) {
+            BitSet members = gateway.getMembership().members(((Group) target).getId());
+            synchronized (this) {
+                dirty.or(members);
+            }
+        } else {
+            synchronized (this) {
+                dirty.set(target.getSlot());
+            }
+        }
+    }
+
+    /**
+     * Called whenever the gateway reported the complete status of a luminary.
+     */
+    synchronized void reported(int slot, long nanos) {
+        if (slot >= reportedAt.length) {
+            reportedAt = Arrays.copyOf(reportedAt, Math.max(reportedAt.length * 2, slot + 1));
+        }
+        reportedAt[slot] = nanos;
+        reported.set(slot);
+        dirty.clear(slot);
+    }
+
+    /**
+     * Forgets a slot released by a removed luminary.
+     */
+    synchronized void released(int slot) {
+        reported.clear(slot);
+        dirty.clear(slot);
+    }
+
+    /**
+     * @return the known lights that are stale right now, including those with a command outstanding
+     */
+    public List<Light> getStaleLights() {
+        List<Light> stale = new ArrayList<Light>();
+        long now = System.nanoTime();
+        long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        synchronized (this) {
+            for (Light l : gateway.getLights()) {
+                if (isStale(l.getSlot(), now, maxAgeNanos)) {
+                    stale.add(l);
+                }
+            }
+        }
+        return stale;
+    }
+
+    private boolean isStale(int slot, long now, long maxAgeNanos) {
+        if (dirty.get(slot)) {
+            return true;
+        }
+        return !reported.get(slot) || (maxAgeNanos > 0 && now - reportedAt[slot] > maxAgeNanos);
+    }
+
+    /**
+     * @return true if one all light status query is estimated to be cheaper than a light status query for each of
+     *         the stale lights
+     */
+    boolean prefersBulk(int stale, int lights) {
+        long single = (long) stale * (LIGHT_STATUS_BYTES + requestCost);
+        long bulk = ALL_LIGHT_STATUS_BYTES + requestCost + (long) lights * ALL_LIGHT_STATUS_BYTES_PER_LIGHT;
+        return bulk < single;
+    }
+
+    /**
+     * Queries the status of all stale lights and waits for the replies.
+     *
+     * @return the number of lights whose status was queried, all known lights if the all light status query was used
+     * @throws IOException
+     *             if the status of any stale light could not be fetched
+     */
+    public int refresh() throws IOException, InterruptedException {
+        List<Light> stale = getStaleLights();
+        int lights = gateway.getLights().size();
+        if (stale.isEmpty()) {
+            return 0;
+        }
+        if (prefersBulk(stale.size(), lights)) {
+            logger.debug("Refreshing {} of {} lights with one all light status query", stale.size(), lights);
+            bulkQueries.incrementAndGet();
+            gateway.refreshAllLights();
+            return lights;
+        }
+        logger.debug("Refreshing {} of {} lights with light status queries", stale.size(), lights);
+        List<CommandFuture> pending = new ArrayList<CommandFuture>(stale.size());
+        IOException failure = null;
+        for (Light l : stale) {
+            if (l.hasPendingChanges()) {
+                continue;
+            }
+            try {
+                pending.add(gateway.sendAsync(new UpdateLightStatus(l.getAddress())));
+            } catch (IOException e) {
+                failure = e;
+                break;
+            }
+        }
+        singleQueries.addAndGet(pending.size());
+        for (CommandFuture future : pending) {
+            try {
+                if (!future.await()) {
+                    logger.warn("Gateway reported an error for a light status request");
+                }
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return pending.size();
+    }
+
+}
@@ -23,6 +23,21 @@ public class SetColor extends Packet {
         this.time = time;
     }
 
+    @Override
+    Luminary getTarget() {
+        return lum;
+    }
+
+    @Override
+    long applyTo(long state) {
+        return LightState.withRGB(state, red, green, blue);
+    }
+
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH + 8 + 6;
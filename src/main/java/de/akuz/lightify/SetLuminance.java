@@ -16,6 +16,21 @@ public class SetLuminance extends Packet {
         this.time = time;
     }
 
+    @Override
+    Luminary getTarget() {
+        return luminary;
+    }
+
+    @Override
+    long applyTo(long state) {
+        return LightState.withLuminance(state, lum);
+    }
+
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH + 11;
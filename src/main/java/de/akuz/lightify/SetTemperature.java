@@ -16,6 +16,21 @@ public class SetTemperature extends Packet {
         this.time = time;
     }
 
+    @Override
+    Luminary getTarget() {
+        return lum;
+    }
+
+    @Override
+    long applyTo(long state) {
+        return LightState.withTemperature(state, temperature);
+    }
+
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH + 8 + 4;
@@ -0,0 +1,114 @@
+package de.akuz.lightify;
+
+import java.util.Arrays;
+
+/**
+ * The last state changes of every luminary of a {@link LightStateStore}, each with the wall clock time it was
+ * reported by the gateway. Every slot owns a ring buffer of fixed capacity inside two primitive arrays, so the memory
+ * cost is the same for every luminary and does not grow with the number of changes. States are packed as described
+ * in {@link LightState}.
+ *
+ * @see LightStateStore#enableHistory(int)
+ */
+public class StateHistory {
+
+    private final int capacity;
+
+    private long[] times;
+    private long[] states;
+    // per slot: index of the next entry to write and number of entries held
+    private int[] next;
+    private int[] counts;
+
+    StateHistory(int capacity, int slots) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        int size = Math.max(slots, 1);
+        times = new long[size * capacity];
+        states = new long[size * capacity];
+        next = new int[size];
+        counts = new int[size];
+    }
+
+    /**
+     * @return the number of changes kept per luminary
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Appends the state unless it equals the last one recorded for the slot.
+     */
+    synchronized void record(int slot, long time, long state) {
+        if (slot >= next.length) {
+            int size = Math.max(next.length * 2, slot + 1);
+            times = Arrays.copyOf(times, size * capacity);
+            states = Arrays.copyOf(states, size * capacity);
+            next = Arrays.copyOf(next, size);
+            counts = Arrays.copyOf(counts, size);
+        }
+        int base = slot * capacity;
+        int count = counts[slot];
+        if (count > 0 && states[base + (next[slot] + capacity - 1) % capacity] == state) {
+            return;
+        }
+        times[base + next[slot]] = time;
+        states[base + next[slot]] = state;
+        next[slot] = (next[slot] + 1) % capacity;
+        if (count < capacity) {
+            counts[slot] = count + 1;
+        }
+    }
+
+    /**
+     * Forgets the changes of a slot that was released.
+     */
+    synchronized void clear(int slot) {
+        if (slot < counts.length) {
+            counts[slot] = 0;
+            next[slot] = 0;
+        }
+    }
+
+    /**
+     * @return the number of changes currently held for the slot
+     */
+    public synchronized int size(int slot) {
+        return slot < counts.length ? counts[slot] : 0;
+    }
+
+    /**
+     * Copies the changes of a slot recorded between {@code from} and {@code to} (both inclusive, milliseconds since
+     * the epoch) into the given arrays, oldest first. Nothing is allocated, so this can be called for every light in a
+     * reporting loop.
+     *
+     * @return the number of entries copied, at most the length of the shorter array
+     */
+    public synchronized int query(int slot, long from, long to, long[] timesOut, long[] statesOut) {
+        if (slot >= counts.length) {
+            return 0;
+        }
+        int base = slot * capacity;
+        int count = counts[slot];
+        int oldest = (next[slot] + capacity - count) % capacity;
+        int max = Math.min(timesOut.length, statesOut.length);
+        int copied = 0;
+        for (int i = 0; i < count && copied < max; i++) {
+            int index = base + (oldest + i) % capacity;
+            long time = times[index];
+            if (time > to) {
+                break;
+            }
+            if (time >= from) {
+                timesOut[copied] = time;
+                statesOut[copied] = states[index];
+                copied++;
+            }
+        }
+        return copied;
+    }
+
+}
@@ -6,6 +6,11 @@ public class UpdateAllLightStatus extends Packet {
         super(Packet.COMMAND_ALL_LIGHT_STATUS, (byte) 0x02);
     }
 
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH + 1;
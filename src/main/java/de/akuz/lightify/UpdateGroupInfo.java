@@ -12,6 +12,11 @@ public class UpdateGroupInfo extends Packet {
         this.groupId = groupId;
     }
 
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH + 8;
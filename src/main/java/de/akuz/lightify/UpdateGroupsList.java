@@ -7,6 +7,11 @@ public class UpdateGroupsList extends Packet {
 
     }
 
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return DEFAULT_HEADER_LENGTH;
@@ -11,6 +11,11 @@ public class UpdateLightStatus extends Packet {
         this.lightAddress = address;
     }
 
+    @Override
+    protected boolean isIdempotent() {
+        return true;
+    }
+
     @Override
     protected short getLength() {
         return (short) (DEFAULT_HEADER_LENGTH + lightAddress.getBytes().length);
@@ -0,0 +1,175 @@
+package de.akuz.lightify;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records raw frames sent to and received from the gateway into a preallocated ring buffer. When the ring is full the
+ * oldest frames are overwritten, so a capture always holds the most recent traffic and recording never allocates.
+ * {@link #dump(File)} writes the retained frames to a file that can be fed back through the decoder with
+ * {@link CaptureReplay}.
+ *
+ * <p>
+ * File format (big endian): magic, version, wall clock millis and {@link System#nanoTime()} at dump time, frame
+ * count, then for every frame its nano timestamp, direction, length and raw bytes.
+ */
+public class WireCapture {
+
+    public static final byte INBOUND = 0x01;
+    public static final byte OUTBOUND = 0x02;
+
+    static final int MAGIC = 0x4c464359; // "LFCY"
+    static final int VERSION = 1;
+
+    private final byte[] data;
+    private final long[] timestamps;
+    private final byte[] directions;
+    private final long[] offsets;
+    private final int[] lengths;
+
+    private long bytesWritten;
+    private long framesWritten;
+    private long framesDropped;
+
+    /**
+     * @param capacity
+     *            size of the frame data ring in bytes
+     * @param maxFrames
+     *            maximum number of frames retained
+     */
+    public WireCapture(int capacity, int maxFrames) {
+        data = new byte[capacity];
+        timestamps = new long[maxFrames];
+        directions = new byte[maxFrames];
+        offsets = new long[maxFrames];
+        lengths = new int[maxFrames];
+    }
+
+    /**
+     * Copies the bytes between position and limit of the frame without changing the buffer.
+     */
+    synchronized void record(byte direction, ByteBuffer frame) {
+        int length = frame.remaining();
+        if (length > data.length) {
+            framesDropped++;
+            return;
+        }
+        int slot = (int) (framesWritten % timestamps.length);
+        timestamps[slot] = System.nanoTime();
+        directions[slot] = direction;
+        offsets[slot] = bytesWritten;
+        lengths[slot] = length;
+
+        int start = frame.position();
+        int pos = (int) (bytesWritten % data.length);
+        for (int i = 0; i < length; i++) {
+            data[pos] = frame.get(start + i);
+            if (++pos == data.length) {
+                pos = 0;
+            }
+        }
+        bytesWritten += length;
+        framesWritten++;
+    }
+
+    /**
+     * @return the number of frames still held in the ring
+     */
+    public synchronized int size() {
+        int count = (int) Math.min(framesWritten, timestamps.length);
+        int retained = 0;
+        for (int i = 0; i < count; i++) {
+            if (isRetained(slotOf(framesWritten - count + i))) {
+                retained++;
+            }
+        }
+        return retained;
+    }
+
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * @return the number of frames not recorded because they were larger than the whole ring
+     */
+    public synchronized long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public synchronized void clear() {
+        bytesWritten = 0;
+        framesWritten = 0;
+        framesDropped = 0;
+    }
+
+    /**
+     * Writes all retained frames, oldest first, to the given file. The frames are copied while holding the lock and
+     * written afterwards, so recording on the event loop does not wait for the file.
+     */
+    public void dump(File file) throws IOException {
+        long[] frameTimes;
+        byte[] frameDirections;
+        int[] frameLengths;
+        byte[] frameData;
+        synchronized (this) {
+            int count = (int) Math.min(framesWritten, timestamps.length);
+            long first = framesWritten - count;
+            while (count > 0 && !isRetained(slotOf(first))) {
+                first++;
+                count--;
+            }
+            frameTimes = new long[count];
+            frameDirections = new byte[count];
+            frameLengths = new int[count];
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                total += lengths[slotOf(first + i)];
+            }
+            frameData = new byte[total];
+            int copied = 0;
+            for (int i = 0; i < count; i++) {
+                int slot = slotOf(first + i);
+                frameTimes[i] = timestamps[slot];
+                frameDirections[i] = directions[slot];
+                frameLengths[i] = lengths[slot];
+                int pos = (int) (offsets[slot] % data.length);
+                int tail = Math.min(lengths[slot], data.length - pos);
+                System.arraycopy(data, pos, frameData, copied, tail);
+                System.arraycopy(data, 0, frameData, copied + tail, lengths[slot] - tail);
+                copied += lengths[slot];
+            }
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(System.nanoTime());
+            out.writeInt(frameTimes.length);
+            int pos = 0;
+            for (int i = 0; i < frameTimes.length; i++) {
+                out.writeLong(frameTimes[i]);
+                out.writeByte(frameDirections[i]);
+                out.writeInt(frameLengths[i]);
+                out.write(frameData, pos, frameLengths[i]);
+                pos += frameLengths[i];
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private int slotOf(long frame) {
+        return (int) (frame % timestamps.length);
+    }
+
+    private boolean isRetained(int slot) {
+        return offsets[slot] >= bytesWritten - data.length;
+    }
+
+}
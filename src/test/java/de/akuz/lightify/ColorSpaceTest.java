@@ -0,0 +1,60 @@
+package de.akuz.lightify;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColorSpaceTest {
+
+    @Test
+    public void testHsvRoundTrip() {
+        Assert.assertEquals(0xFF0000, ColorSpace.hsvToRGB(0, 255, 255));
+        Assert.assertEquals(0x00FF00, ColorSpace.hsvToRGB(120, 255, 255));
+        Assert.assertEquals(0x0000FF, ColorSpace.hsvToRGB(240, 255, 255));
+        Assert.assertEquals(0xFFFFFF, ColorSpace.hsvToRGB(77, 0, 255));
+
+        // half perceptual value is far less than half the linear output
+        int grey = ColorSpace.hsvToRGB(0, 0, 128) & 0xFF;
+        Assert.assertTrue(grey < 64);
+
+        int[] hsv = ColorSpace.rgbToHSV(ColorSpace.hsvToRGB(200, 180, 220));
+        Assert.assertEquals(200, hsv[0], 3);
+        Assert.assertEquals(180, hsv[1], 3);
+        Assert.assertEquals(220, hsv[2], 2);
+    }
+
+    @Test
+    public void testXyRoundTrip() {
+        double[] white = ColorSpace.rgbToXY(0xFFFFFF);
+        Assert.assertEquals(0.3127, white[0], 0.001);
+        Assert.assertEquals(0.3290, white[1], 0.001);
+        assertRGB(0xFFFFFF, ColorSpace.xyToRGB(0.3127, 0.3290), 1);
+
+        double[] xy = ColorSpace.rgbToXY(ColorSpace.xyToRGB(0.25, 0.45));
+        Assert.assertEquals(0.25, xy[0], 0.01);
+        Assert.assertEquals(0.45, xy[1], 0.01);
+        Assert.assertEquals(0, ColorSpace.xyToRGB(0.3, 0));
+    }
+
+    @Test
+    public void testKelvin() {
+        int warm = ColorSpace.kelvinToRGB(2700);
+        Assert.assertEquals(0xFF, warm >>> 16);
+        Assert.assertTrue((warm & 0xFF) < (warm >>> 8 & 0xFF));
+        Assert.assertEquals(ColorSpace.kelvinToRGB(ColorSpace.MIN_KELVIN), ColorSpace.kelvinToRGB(0));
+        Assert.assertEquals(2700, ColorSpace.rgbToKelvin(warm), 300);
+        Assert.assertEquals(6500, ColorSpace.rgbToKelvin(ColorSpace.kelvinToRGB(6500)), 500);
+    }
+
+    /**
+     * Compares every channel of two 0xRRGGBB colours with the given tolerance.
+     */
+    private static void assertRGB(int expected, int actual, int tolerance) {
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int e = (expected >>> shift) & 0xFF;
+            int a = (actual >>> shift) & 0xFF;
+            Assert.assertTrue(String.format("expected %06x but was %06x", expected, actual),
+                    Math.abs(e - a) <= tolerance);
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package de.akuz.lightify;
+
+import java.io.File;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRollsSegmentsAndReadsBackInOrder() throws Exception {
+        File dir = folder.newFolder();
+        EventJournal journal = new EventJournal(dir, 4096);
+        byte[] frame = new UpdateGroupInfo(3).serialize((byte) 9);
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 0) {
+                journal.appendState(i, LightState.pack(true, (byte) 50, (short) 2700, i));
+            } else {
+                journal.appendCommand((byte) i, frame, i);
+            }
+            if (i % 50 == 0) {
+                // give the preallocation a chance, appends never wait for it
+                Thread.sleep(2);
+            }
+        }
+        journal.close();
+        Assert.assertEquals(1000, journal.getRecordsWritten() + journal.getRecordsDropped());
+        Assert.assertTrue(EventJournal.segments(dir).length > 2);
+
+        EventJournal.Reader reader = EventJournal.read(dir);
+        long count = 0;
+        long last = -1;
+        while (reader.next()) {
+            Assert.assertTrue(reader.getAddress() > last);
+            last = reader.getAddress();
+            if (reader.getType() == EventJournal.STATE) {
+                Assert.assertEquals(last, LightState.getRGB(reader.getState()));
+            } else {
+                Assert.assertEquals(EventJournal.COMMAND, reader.getType());
+                Assert.assertEquals((byte) last, reader.getSequence());
+                Assert.assertArrayEquals(frame, reader.getFrame());
+            }
+            count++;
+        }
+        reader.close();
+        Assert.assertEquals(journal.getRecordsWritten(), count);
+    }
+
+    @Test
+    public void testReopenAppendsToNewSegment() throws Exception {
+        File dir = folder.newFolder();
+        EventJournal first = new EventJournal(dir, 4096);
+        first.appendState(1, 1);
+        first.close();
+        EventJournal second = new EventJournal(dir, 4096);
+        second.appendState(2, 2);
+        second.close();
+        // the preallocated segments are removed on close
+        Assert.assertEquals(2, EventJournal.segments(dir).length);
+
+        EventJournal.Reader reader = EventJournal.read(dir);
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(1, reader.getAddress());
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(2, reader.getAddress());
+        Assert.assertFalse(reader.next());
+    }
+
+    @Test
+    public void testReopenReusesTrailingEmptySegment() throws Exception {
+        File dir = folder.newFolder();
+        EventJournal first = new EventJournal(dir, 4096);
+        first.appendState(1, 1);
+        first.close();
+        // left behind by a process that did not close its journal
+        Assert.assertTrue(new File(dir, EventJournal.name(1)).createNewFile());
+
+        EventJournal second = new EventJournal(dir, 4096);
+        second.appendState(2, 2);
+        second.close();
+        File[] segments = EventJournal.segments(dir);
+        Assert.assertEquals(2, segments.length);
+        Assert.assertEquals(1, EventJournal.indexOf(segments[1]));
+    }
+
+    @Test
+    public void testGatewayJournalsReportedStates() throws Exception {
+        File dir = folder.newFolder();
+        EventJournal journal = new EventJournal(dir, 4096);
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.setJournal(journal);
+        gateway.onRead(GatewayTest.allLightStatus("Kitchen", "Hallway"));
+        journal.close();
+
+        EventJournal.Reader reader = EventJournal.read(dir);
+        Assert.assertTrue(reader.next());
+        Assert.assertEquals(EventJournal.STATE, reader.getType());
+        Assert.assertEquals(gateway.getLightByName("Kitchen").getAddressKey(), reader.getAddress());
+        Assert.assertEquals(gateway.getLightByName("Kitchen").getState(), reader.getState());
+        Assert.assertTrue(reader.next());
+        Assert.assertFalse(reader.next());
+    }
+
+}
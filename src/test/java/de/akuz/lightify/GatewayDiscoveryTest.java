@@ -0,0 +1,62 @@
+package de.akuz.lightify;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class GatewayDiscoveryTest {
+
+    @Test
+    public void testHostsOfRange() throws Exception {
+        List<InetAddress> hosts = GatewayDiscovery.hosts("192.168.1.77/22");
+        Assert.assertEquals(1022, hosts.size());
+        Assert.assertEquals(InetAddress.getByName("192.168.0.1"), hosts.get(0));
+        Assert.assertEquals(InetAddress.getByName("192.168.3.254"), hosts.get(1021));
+        Assert.assertEquals(1, GatewayDiscovery.hosts("10.0.0.5").size());
+    }
+
+    @Test
+    public void testFindsOnlyGatewaysOnLoopback() throws Exception {
+        GatewaySimulator first = new GatewaySimulator(new InetSocketAddress("127.0.0.1", 0), 1, 2).start();
+        int port = first.getPort();
+        GatewaySimulator second = null;
+        ServerSocket other;
+        try {
+            second = new GatewaySimulator(new InetSocketAddress("127.0.0.3", port), 1, 200).start();
+            // accepts connections but never speaks the protocol
+            other = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.2"));
+        } catch (BindException e) {
+            // only the whole of 127.0.0.0/8 is loopback on Linux, elsewhere these addresses do not exist
+            first.stop();
+            if (second != null) {
+                second.stop();
+            }
+            Assume.assumeNoException(e);
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            List<InetSocketAddress> found = new GatewayDiscovery().setPort(port).setHandshakeTimeout(300)
+                    .scan("127.0.0.0/29");
+            Assert.assertTrue(System.nanoTime() - start < 3000000000L);
+
+            Set<InetSocketAddress> expected = new HashSet<InetSocketAddress>();
+            expected.add(new InetSocketAddress("127.0.0.1", port));
+            expected.add(new InetSocketAddress("127.0.0.3", port));
+            Assert.assertEquals(expected, new HashSet<InetSocketAddress>(found));
+        } finally {
+            other.close();
+            first.stop();
+            second.stop();
+        }
+    }
+
+}
@@ -0,0 +1,354 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Local stand-in for a Lightify gateway. Serves any number of clients on a loopback port from a single selector
+ * thread and answers group list, group info, light status, all light status and the set commands for a configurable
+ * number of lights and groups. Light {@code i} is a member of group {@code i % groups + 1}.
+ */
+public class GatewaySimulator implements Runnable {
+
+    static final long ADDRESS_BASE = 0x8418260000000000L;
+
+    // the frame length is an unsigned short, so one status reply holds at most this many 50 byte records
+    private static final int MAX_STATUS_RECORDS = (0xFFFF - 9) / 50;
+
+    private final int lightCount;
+    private final int groupCount;
+
+    private final boolean[] on;
+    private final byte[] lum;
+    private final short[] temp;
+    private final int[] rgb;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread = new Thread(this, "gateway-simulator");
+
+    private volatile boolean silent;
+
+    public GatewaySimulator(int lightCount, int groupCount) throws IOException {
+        this(new InetSocketAddress("127.0.0.1", 0), lightCount, groupCount);
+    }
+
+    public GatewaySimulator(InetSocketAddress bindAddress, int lightCount, int groupCount) throws IOException {
+        this.lightCount = lightCount;
+        this.groupCount = Math.max(groupCount, 1);
+        on = new boolean[lightCount];
+        lum = new byte[lightCount];
+        temp = new short[lightCount];
+        rgb = new int[lightCount];
+        for (int i = 0; i < lightCount; i++) {
+            on[i] = true;
+            lum[i] = 100;
+            temp[i] = 2700;
+            rgb[i] = 0xFFFFFF;
+        }
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().bind(bindAddress);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public GatewaySimulator start() {
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void stop() throws IOException {
+        thread.interrupt();
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.close();
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public int getLightCount() {
+        return lightCount;
+    }
+
+    /**
+     * While silent, requests are read but never answered, like a half-open connection.
+     */
+    public void setSilent(boolean silent) {
+        this.silent = silent;
+    }
+
+    static long address(int light) {
+        return ADDRESS_BASE | (light + 1);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                while (itr.hasNext()) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            SocketChannel client = server.accept();
+                            if (client != null) {
+                                client.configureBlocking(false);
+                                client.socket().setTcpNoDelay(true);
+                                client.register(selector, SelectionKey.OP_READ, new Client());
+                            }
+                        } else {
+                            Client client = (Client) key.attachment();
+                            if (key.isReadable()) {
+                                client.read(key);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                client.flush(key);
+                            }
+                        }
+                    } catch (IOException e) {
+                        key.channel().close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // stopped
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private class Client {
+
+        private ByteBuffer in = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        private ByteBuffer out = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        void read(SelectionKey key) throws IOException {
+            SocketChannel ch = (SocketChannel) key.channel();
+            if (ch.read(in) < 0) {
+                ch.close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() > 1) {
+                int start = in.position();
+                int length = in.getChar(start) + 2;
+                if (in.remaining() < length) {
+                    break;
+                }
+                if (!silent) {
+                    handle(in, start);
+                }
+                in.position(start + length);
+            }
+            in.compact();
+            flush(key);
+        }
+
+        void flush(SelectionKey key) throws IOException {
+            SocketChannel ch = (SocketChannel) key.channel();
+            out.flip();
+            ch.write(out);
+            out.compact();
+            int ops = SelectionKey.OP_READ;
+            if (out.position() > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        private void handle(ByteBuffer req, int start) {
+            byte command = req.get(start + 3);
+            int payload = start + 8;
+            switch (command) {
+                case Packet.COMMAND_GROUP_LIST: {
+                    int reply = begin(req, start, 2 + groupCount * 18);
+                    out.putShort(reply + 9, (short) groupCount);
+                    for (int g = 0; g < groupCount; g++) {
+                        int pos = reply + 11 + g * 18;
+                        out.putShort(pos, (short) (g + 1));
+                        putName(pos + 2, "Group " + (g + 1));
+                    }
+                    break;
+                }
+                case Packet.COMMAND_GROUP_INFO: {
+                    int group = req.get(payload) & 0xFF;
+                    int members = 0;
+                    for (int i = group - 1; i >= 0 && i < lightCount && members < 255; i += groupCount) {
+                        members++;
+                    }
+                    int reply = begin(req, start, 2 + 17 + members * 8);
+                    out.putShort(reply + 9, (short) group);
+                    putName(reply + 11, "Group " + group);
+                    out.put(reply + 27, (byte) members);
+                    int n = 0;
+                    for (int i = group - 1; n < members; i += groupCount) {
+                        out.putLong(reply + 28 + n++ * 8, address(i));
+                    }
+                    break;
+                }
+                case Packet.COMMAND_ALL_LIGHT_STATUS: {
+                    int count = Math.min(lightCount, MAX_STATUS_RECORDS);
+                    int reply = begin(req, start, 2 + count * 50);
+                    out.putShort(reply + 9, (short) count);
+                    for (int i = 0; i < count; i++) {
+                        int pos = reply + 11 + i * 50;
+                        out.putShort(pos, (short) i);
+                        out.putLong(pos + 2, address(i));
+                        putStatus(pos + 18, i);
+                        putName(pos + 26, "Light " + i);
+                    }
+                    break;
+                }
+                case Packet.COMMAND_LIGHT_STATUS: {
+                    int light = lightOf(req.getLong(payload));
+                    int reply = begin(req, start, 19);
+                    out.putLong(reply + 11, req.getLong(payload));
+                    if (light >= 0) {
+                        putStatus(reply + 21, light);
+                    } else {
+                        out.put(reply + 8, (byte) 0x0b);
+                    }
+                    break;
+                }
+                case Packet.COMMAND_ONOFF: {
+                    boolean state = req.get(payload + 8) == 0x01;
+                    boolean known = apply(req.getLong(payload), command, req, payload);
+                    int reply = begin(req, start, 8 + 1);
+                    out.putLong(reply + 11, req.getLong(payload));
+                    out.put(reply + 19, (byte) (state ? 0x01 : 0x00));
+                    if (!known) {
+                        out.put(reply + 8, (byte) 0x0b);
+                    }
+                    break;
+                }
+                case Packet.COMMAND_LUMINANCE:
+                case Packet.COMMAND_TEMP:
+                case Packet.COMMAND_COLOUR: {
+                    boolean known = apply(req.getLong(payload), command, req, payload);
+                    int reply = begin(req, start, 8 + 1);
+                    out.putLong(reply + 11, req.getLong(payload));
+                    if (!known) {
+                        out.put(reply + 8, (byte) 0x0b);
+                    }
+                    break;
+                }
+                default:
+                    begin(req, start, 0);
+                    out.put(out.position() - 1, (byte) 0xFF);
+            }
+        }
+
+        /**
+         * Writes the reply header echoing the request id and reserves the payload.
+         *
+         * @return the start of the reply in the output buffer
+         */
+        private int begin(ByteBuffer req, int start, int payloadLength) {
+            int length = 9 + payloadLength;
+            if (out.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(out.capacity() + length * 2).order(ByteOrder.LITTLE_ENDIAN);
+                out.flip();
+                grown.put(out);
+                out = grown;
+            }
+            int reply = out.position();
+            for (int i = 0; i < length; i++) {
+                out.put((byte) 0);
+            }
+            out.putShort(reply, (short) (length - 2));
+            out.put(reply + 2, req.get(start + 2));
+            out.put(reply + 3, req.get(start + 3));
+            for (int i = 4; i < 8; i++) {
+                out.put(reply + i, req.get(start + i));
+            }
+            return reply;
+        }
+
+        private void putStatus(int pos, int light) {
+            out.put(pos, (byte) (on[light] ? 0x01 : 0x00));
+            out.put(pos + 1, lum[light]);
+            out.putShort(pos + 2, temp[light]);
+            out.put(pos + 4, (byte) (rgb[light] >> 16));
+            out.put(pos + 5, (byte) (rgb[light] >> 8));
+            out.put(pos + 6, (byte) rgb[light]);
+        }
+
+        private void putName(int pos, String name) {
+            byte[] bytes = name.getBytes();
+            for (int i = 0; i < bytes.length && i < 16; i++) {
+                out.put(pos + i, bytes[i]);
+            }
+        }
+    }
+
+    private int lightOf(long address) {
+        int light = (int) (address - ADDRESS_BASE) - 1;
+        return light >= 0 && light < lightCount && address(light) == address ? light : -1;
+    }
+
+    /**
+     * @return false if the address is not a known light, in which case the gateway answers with an error
+     */
+    private boolean apply(long address, byte command, ByteBuffer req, int payload) {
+        if (address >>> 8 == 0) {
+            int group = (int) address;
+            for (int i = group - 1; i >= 0 && i < lightCount; i += groupCount) {
+                apply(i, command, req, payload);
+            }
+            return true;
+        }
+        int light = lightOf(address);
+        if (light >= 0) {
+            apply(light, command, req, payload);
+        }
+        return light >= 0;
+    }
+
+    private void apply(int light, byte command, ByteBuffer req, int payload) {
+        switch (command) {
+            case Packet.COMMAND_ONOFF:
+                on[light] = req.get(payload + 8) == 0x01;
+                break;
+            case Packet.COMMAND_LUMINANCE:
+                lum[light] = req.get(payload + 8);
+                break;
+            case Packet.COMMAND_TEMP:
+                temp[light] = req.getShort(payload + 8);
+                break;
+            case Packet.COMMAND_COLOUR:
+                rgb[light] = (req.get(payload + 8) & 0xFF) << 16 | (req.get(payload + 9) & 0xFF) << 8
+                        | (req.get(payload + 10) & 0xFF);
+                break;
+            default:
+        }
+    }
+
+}
@@ -0,0 +1,805 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GatewayTest {
+
+    static ByteBuffer allLightStatus(String... names) {
+        ByteBuffer buf = ByteBuffer.allocate(11 + names.length * 50);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort((short) (buf.capacity() - 2));
+        buf.put((byte) 0x02);
+        buf.put(Packet.COMMAND_ALL_LIGHT_STATUS);
+        buf.put(new byte[] { 0x00, 0x00, 0x07, 0x01, 0x00 });
+        buf.putShort((short) names.length);
+        for (int i = 0; i < names.length; i++) {
+            int pos = 11 + i * 50;
+            buf.putShort(pos, (short) i);
+            buf.put(pos + 2, (byte) (i + 1));
+            buf.put(pos + 9, (byte) 0x10);
+            buf.put(pos + 18, (byte) 0x01);
+            buf.put(pos + 19, (byte) 80);
+            buf.putShort(pos + 20, (short) 2700);
+            buf.put(pos + 22, (byte) 0x11);
+            buf.put(pos + 23, (byte) 0x22);
+            buf.put(pos + 24, (byte) 0x33);
+            byte[] name = names[i].getBytes();
+            for (int j = 0; j < name.length; j++) {
+                buf.put(pos + 26 + j, name[j]);
+            }
+        }
+        buf.position(0);
+        return buf;
+    }
+
+    static ByteBuffer frame(byte command, int payloadLength) {
+        ByteBuffer buf = ByteBuffer.allocate(9 + payloadLength);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        buf.putShort((short) (buf.capacity() - 2));
+        buf.put((byte) 0x02);
+        buf.put(command);
+        buf.put(new byte[] { 0x00, 0x00, 0x07, 0x01, 0x00 });
+        return buf;
+    }
+
+    static ByteBuffer groupList(String... names) {
+        ByteBuffer buf = frame(Packet.COMMAND_GROUP_LIST, 2 + names.length * 18);
+        buf.putShort((short) names.length);
+        for (int i = 0; i < names.length; i++) {
+            buf.putShort((short) (i + 1));
+            byte[] name = names[i].getBytes();
+            buf.put(name);
+            buf.put(new byte[16 - name.length]);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    static ByteBuffer groupInfo(int id, int... lights) {
+        ByteBuffer buf = frame(Packet.COMMAND_GROUP_INFO, 2 + 17 + lights.length * 8);
+        buf.putShort((short) id);
+        buf.put(new byte[16]);
+        buf.put((byte) lights.length);
+        for (int light : lights) {
+            buf.put(new byte[] { (byte) light, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10 });
+        }
+        buf.flip();
+        return buf;
+    }
+
+    @Test
+    public void testAllLightStatusParsedInPlace() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen", "Hallway"));
+
+        Assert.assertEquals(2, gateway.getLights().size());
+        Light hallway = gateway.getLightByName("Hallway");
+        Assert.assertNotNull(hallway);
+        Assert.assertSame(hallway,
+                gateway.getLightByAddress(new byte[] { 0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x10 }));
+        Assert.assertTrue(hallway.isOn());
+        Assert.assertEquals(80, hallway.getLuminance());
+        Assert.assertEquals(2700, hallway.getTemperature());
+        Assert.assertArrayEquals(new byte[] { 0x11, 0x22, 0x33 }, hallway.getRGB());
+
+        String name = hallway.getName();
+        gateway.onRead(allLightStatus("Kitchen", "Hallway"));
+        Assert.assertEquals(2, gateway.getLights().size());
+        Assert.assertSame(name, hallway.getName());
+    }
+
+    @Test
+    public void testPartialAndConsecutiveFrames() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        ByteBuffer first = allLightStatus("Kitchen");
+        ByteBuffer second = allLightStatus("Kitchen", "Hallway");
+        ByteBuffer stream = ByteBuffer.allocate(first.capacity() + second.capacity());
+        stream.put(first).put(second);
+
+        stream.flip();
+        stream.limit(first.capacity() + 20);
+        gateway.onRead(stream);
+        Assert.assertEquals(1, gateway.getLights().size());
+        Assert.assertEquals(first.capacity(), stream.position());
+
+        stream.limit(stream.capacity());
+        gateway.onRead(stream);
+        Assert.assertEquals(2, gateway.getLights().size());
+        Assert.assertFalse(stream.hasRemaining());
+    }
+
+    @Test
+    public void testTruncatedFrameIsDropped() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        ByteBuffer truncated = ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN);
+        truncated.putShort((short) 4).put((byte) 0x02).put(Packet.COMMAND_ALL_LIGHT_STATUS).putShort((short) 0);
+        truncated.flip();
+        ByteBuffer stream = ByteBuffer.allocate(truncated.capacity() + allLightStatus("Kitchen").capacity());
+        stream.put(truncated).put(allLightStatus("Kitchen"));
+        stream.flip();
+        gateway.onRead(stream);
+
+        Assert.assertFalse(stream.hasRemaining());
+        Assert.assertEquals(1, gateway.getLights().size());
+    }
+
+    @Test
+    public void testSharedStateStore() throws Exception {
+        LightStateStore store = new LightStateStore(4);
+        Gateway first = new Gateway("127.0.0.1", 4000, store);
+        Gateway second = new Gateway("127.0.0.1", 4000, store);
+        first.onRead(allLightStatus("Kitchen", "Hallway"));
+        second.onRead(allLightStatus("Porch", "Garden", "Garage"));
+
+        Assert.assertEquals(5, store.countLights());
+        Assert.assertEquals(5, store.countOn());
+        Assert.assertEquals(80, store.averageLuminance(), 0.001);
+        Light garage = second.getLightByName("Garage");
+        Assert.assertSame(garage, store.getLuminary(garage.getSlot()));
+    }
+
+    @Test
+    public void testRemovedGroupReleasesSlot() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        LightStateStore store = gateway.getStateStore();
+        gateway.onRead(allLightStatus("Kitchen"));
+        gateway.onRead(groupList("Downstairs", "Outside"));
+        Assert.assertEquals(3, store.size());
+        int slot = gateway.getGroupById(2).getSlot();
+
+        gateway.onRead(groupList("Downstairs"));
+        Assert.assertEquals(2, store.size());
+        Assert.assertNull(store.getLuminary(slot));
+
+        gateway.onRead(groupList("Downstairs", "Garden"));
+        Group garden = gateway.getGroupById(2);
+        Assert.assertEquals(slot, garden.getSlot());
+        Assert.assertEquals(3, store.size());
+        Assert.assertEquals(1, store.countLights());
+        Assert.assertSame(garden, store.getLuminary(slot));
+    }
+
+    @Test
+    public void testRemovedGroupDoesNotChangeNewSlotOwner() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(groupList("Downstairs", "Outside"));
+        Group outside = gateway.getGroupById(2);
+        outside.updateOn(true);
+        gateway.onRead(groupList("Downstairs"));
+        Assert.assertTrue(outside.isRemoved());
+
+        gateway.onRead(allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+        Assert.assertEquals(outside.getSlot(), kitchen.getSlot());
+        long state = kitchen.getState();
+        long confirmedAt = kitchen.getConfirmedAt();
+
+        outside.updateOn(false);
+        outside.applyState(LightState.withLuminance(state, (byte) 5));
+        outside.rollbackState(state, 0);
+        outside.confirmState();
+        try {
+            outside.applyCommand(new OnOffCommand(outside, false));
+            Assert.fail("commands to a removed group must fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(state, kitchen.getState());
+        Assert.assertEquals(confirmedAt, kitchen.getConfirmedAt());
+        Assert.assertTrue(outside.isOn());
+        Assert.assertEquals(0, outside.getLuminance());
+    }
+
+    @Test
+    public void testQueryByStateAndGroup() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen", "Hallway", "Porch"));
+        gateway.onRead(groupList("Downstairs", "Outside"));
+        gateway.onRead(groupInfo(1, 1, 2));
+        gateway.onRead(groupInfo(2, 3));
+
+        Group downstairs = gateway.getGroupById(1);
+        Light kitchen = gateway.getLightByName("Kitchen");
+        Light porch = gateway.getLightByName("Porch");
+        Assert.assertTrue(downstairs.contains(kitchen));
+        Assert.assertFalse(downstairs.contains(porch));
+        Assert.assertEquals(1, porch.getGroups().size());
+        Assert.assertSame(gateway.getGroupById(2), porch.getGroups().get(0));
+
+        porch.updateOn(false);
+        Assert.assertEquals(2, gateway.query().on().count());
+        Assert.assertEquals(2, gateway.query().inGroup(downstairs).on().count());
+        Assert.assertEquals(0, gateway.query().inGroup(downstairs).luminanceBelow(20).count());
+        Assert.assertEquals(porch, gateway.query().off().getLights().get(0));
+        Assert.assertEquals(3, gateway.query().temperatureBelow(3000).count());
+
+        gateway.onRead(groupInfo(1, 1));
+        Assert.assertEquals(1, gateway.query().inGroup(downstairs).count());
+        Assert.assertTrue(gateway.getLightByName("Hallway").getGroups().isEmpty());
+    }
+
+    @Test
+    public void testGroupInfoForUnlistedGroupRegistersGroup() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen", "Hallway"));
+        gateway.onRead(groupInfo(5, 2));
+
+        Group group = gateway.getGroupById(5);
+        Assert.assertNotNull(group);
+        Assert.assertEquals(1, gateway.getGroups().size());
+        Assert.assertTrue(group.contains(gateway.getLightByName("Hallway")));
+    }
+
+    @Test
+    public void testRefreshAllGroupInfoAgainstSimulator() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(100, 40).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.refreshAllLights();
+            Assert.assertEquals(40, gateway.refreshAllGroupInfo().size());
+
+            Group third = gateway.getGroupById(3);
+            Assert.assertEquals(3, third.getLights().size());
+            Assert.assertEquals(3, gateway.query().inGroup(third).count());
+            Light light = gateway.getLightByAddress(third.getLights().get(0).getAddressBytes());
+            Assert.assertEquals(1, light.getGroups().size());
+            Assert.assertSame(third, light.getGroups().get(0));
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testBurstAgainstSimulator() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(30, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.refreshAllLights();
+            WireCapture capture = new WireCapture(4096, 128);
+            gateway.setWireCapture(capture);
+
+            List<Packet> packets = new ArrayList<Packet>();
+            for (Light light : gateway.getLights()) {
+                packets.add(new SetColor(light, (byte) 0x10, (byte) 0x20, (byte) 0x30, (short) 0));
+            }
+            for (boolean nextTick : new boolean[] { false, true }) {
+                for (CommandFuture future : gateway.sendBurst(packets, nextTick)) {
+                    Assert.assertTrue(future.await());
+                }
+            }
+            Assert.assertEquals(0, gateway.getLinkStatistics().getOutstanding());
+            Assert.assertEquals(4 * 30, capture.getFramesWritten());
+            for (Light light : gateway.getLights()) {
+                Assert.assertArrayEquals(new byte[] { 0x10, 0x20, 0x30 }, light.getRGB());
+            }
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testBurstLargerThanWriteBuffer() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(120, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.refreshAllLights();
+            WireCapture capture = new WireCapture(65536, 1024);
+            gateway.setWireCapture(capture);
+
+            List<Packet> packets = new ArrayList<Packet>();
+            for (Light light : gateway.getLights()) {
+                packets.add(new SetColor(light, (byte) 0x40, (byte) 0x50, (byte) 0x60, (short) 0));
+            }
+            for (boolean nextTick : new boolean[] { false, true }) {
+                List<CommandFuture> futures = gateway.sendBurst(packets, nextTick);
+                for (CommandFuture future : futures) {
+                    Assert.assertTrue(future.get(5, TimeUnit.SECONDS));
+                }
+                // grown for the burst, back to the default size once it was written
+                Assert.assertEquals(2048, gateway.getWriteBufferCapacity());
+            }
+            Assert.assertEquals(4 * 120, capture.getFramesWritten());
+            for (Light light : gateway.getLights()) {
+                Assert.assertArrayEquals(new byte[] { 0x40, 0x50, 0x60 }, light.getRGB());
+            }
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testCloseFailsOutstandingCommandsAndWaiters() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(2, 1).start();
+        final Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.refreshAllLights();
+            gateway.setSequenceWindow(1);
+            simulator.setSilent(true);
+
+            Light light = gateway.getLights().get(0);
+            long before = light.getState();
+            CommandFuture outstanding = gateway.sendAsync(new SetLuminance(light, (byte) 10, (short) 0));
+            final IOException[] waiterFailure = new IOException[1];
+            Thread waiter = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        gateway.sendAsync(new UpdateAllLightStatus());
+                    } catch (IOException e) {
+                        waiterFailure[0] = e;
+                    } catch (InterruptedException e) {
+                        // not expected
+                    }
+                }
+            };
+            waiter.start();
+
+            long start = System.nanoTime();
+            gateway.close(Duration.ofMillis(200));
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+            Assert.assertTrue(gateway.isClosed());
+            try {
+                outstanding.await();
+                Assert.fail("outstanding command must fail on close");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals(before, light.getState());
+            waiter.join(1000);
+            Assert.assertNotNull(waiterFailure[0]);
+            try {
+                gateway.sendAsync(new UpdateAllLightStatus());
+                Assert.fail("closed gateway must reject commands");
+            } catch (IOException e) {
+                // expected
+            }
+            try {
+                gateway.connect();
+                Assert.fail("closed gateway must not reconnect");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testHeartbeatDetectsSilentGatewayAndReconnects() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(2, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.setHeartbeat(100, 100, 2);
+            gateway.connect();
+            gateway.refreshAllLights();
+            Assert.assertEquals(Gateway.Health.HEALTHY, gateway.getHealth());
+            Assert.assertTrue(gateway.getLinkStatistics().getRoundTripMicros() > 0);
+
+            simulator.setSilent(true);
+            Assert.assertTrue(awaitHealth(gateway, Gateway.Health.DEGRADED));
+            Assert.assertTrue(awaitHealth(gateway, Gateway.Health.DISCONNECTED));
+            simulator.setSilent(false);
+            Assert.assertTrue(awaitHealth(gateway, Gateway.Health.HEALTHY));
+            Assert.assertEquals(2, gateway.refreshAllLights().size());
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    private static boolean awaitHealth(Gateway gateway, Gateway.Health health) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (gateway.getHealth() != health) {
+            if (System.nanoTime() - deadline > 0) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Test
+    public void testProxySharesConnection() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(20, 4).start();
+        Gateway upstream = new Gateway("127.0.0.1", simulator.getPort());
+        Gateway first = null, second = null;
+        try {
+            upstream.connect();
+            InetSocketAddress proxy = (InetSocketAddress) upstream
+                    .startProxy(new InetSocketAddress("127.0.0.1", 0), 10000);
+            upstream.refreshAllLights();
+            first = new Gateway("127.0.0.1", proxy.getPort());
+            second = new Gateway("127.0.0.1", proxy.getPort());
+            first.connect();
+            second.connect();
+
+            Assert.assertEquals(20, first.refreshAllLights().size());
+            Assert.assertEquals(1, upstream.getProxyCacheHits());
+            Assert.assertEquals(4, second.refreshGroups().size());
+
+            // both clients use the same sequence numbers, the replies must still reach the right one
+            List<CommandFuture> futures = new ArrayList<CommandFuture>();
+            for (Light light : first.getLights()) {
+                futures.add(first.sendAsync(new SetColor(light, (byte) 0x01, (byte) 0x02, (byte) 0x03, (short) 0)));
+                futures.add(second.sendAsync(new UpdateGroupInfo(1)));
+            }
+            for (CommandFuture future : futures) {
+                Assert.assertTrue(future.await());
+            }
+            Assert.assertEquals(5, second.getGroupById(1).getLights().size());
+
+            // the colour change made the cached status stale
+            second.refreshAllLights();
+            Assert.assertEquals(1, upstream.getProxyCacheHits());
+            Assert.assertArrayEquals(new byte[] { 0x01, 0x02, 0x03 }, second.getLights().get(7).getRGB());
+        } finally {
+            if (first != null) {
+                first.disconnect();
+            }
+            if (second != null) {
+                second.disconnect();
+            }
+            upstream.close(0, TimeUnit.MILLISECONDS);
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testRefreshPlannerQueriesOnlyStaleLights() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(200, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.setOptimisticUpdates(false);
+            gateway.refreshAllLights();
+            RefreshPlanner planner = gateway.getRefreshPlanner();
+            Assert.assertTrue(planner.getStaleLights().isEmpty());
+            Assert.assertEquals(0, planner.refresh());
+
+            List<Light> commanded = gateway.getLights().subList(10, 13);
+            for (Light light : commanded) {
+                Assert.assertTrue(gateway.sendAsync(new SetLuminance(light, (byte) 30, (short) 0)).await());
+                Assert.assertEquals(100, light.getLuminance());
+            }
+            Assert.assertEquals(commanded, planner.getStaleLights());
+            Assert.assertEquals(3, planner.refresh());
+            Assert.assertEquals(3, planner.getSingleQueries());
+            for (Light light : commanded) {
+                Assert.assertEquals(30, light.getLuminance());
+            }
+            Assert.assertTrue(planner.getStaleLights().isEmpty());
+
+            // once every light is past the maximum age the all light status query is cheaper
+            planner.setMaxAge(1);
+            Thread.sleep(5);
+            Assert.assertEquals(200, planner.getStaleLights().size());
+            Assert.assertEquals(200, planner.refresh());
+            Assert.assertEquals(1, planner.getBulkQueries());
+            Assert.assertEquals(3, planner.getSingleQueries());
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testRefreshPlannerCostModel() {
+        RefreshPlanner planner = new Gateway("127.0.0.1").getRefreshPlanner();
+        Assert.assertFalse(planner.prefersBulk(1, 1));
+        Assert.assertFalse(planner.prefersBulk(10, 1000));
+        Assert.assertTrue(planner.prefersBulk(500, 1000));
+        planner.setRequestCost(0);
+        Assert.assertFalse(planner.prefersBulk(1000, 1000));
+    }
+
+    @Test
+    public void testGroupAggregateFollowsMembers() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen", "Hallway", "Porch"));
+        gateway.onRead(groupList("Downstairs"));
+        gateway.onRead(groupInfo(1, 1, 2));
+
+        GroupAggregate downstairs = gateway.getGroupById(1).getAggregate();
+        Assert.assertEquals(2, downstairs.getMemberCount());
+        Assert.assertTrue(downstairs.isAllOn());
+        Assert.assertEquals(80, downstairs.getMinLuminance());
+        Assert.assertEquals(80, downstairs.getMaxLuminance());
+        Assert.assertTrue(downstairs.isColorUniform());
+        Assert.assertEquals(0x112233, downstairs.getMeanRGB());
+
+        Light kitchen = gateway.getLightByName("Kitchen");
+        Light hallway = gateway.getLightByName("Hallway");
+        hallway.applyState(LightState.withLuminance(hallway.getState(), (byte) 20));
+        Assert.assertEquals(20, downstairs.getMinLuminance());
+        Assert.assertEquals(80, downstairs.getMaxLuminance());
+        Assert.assertEquals(50, downstairs.getMeanLuminance(), 0.001);
+
+        hallway.applyState(LightState.withRGB(hallway.getState(), (byte) 0x11, (byte) 0x22, (byte) 0x43));
+        Assert.assertFalse(downstairs.isColorUniform());
+        Assert.assertEquals(8, downstairs.getColorSpread(), 0.001);
+
+        kitchen.updateOn(false);
+        Assert.assertEquals(1, downstairs.getOnCount());
+        Assert.assertTrue(downstairs.isAnyOn());
+        Assert.assertFalse(downstairs.isAllOn());
+        Assert.assertEquals(20, downstairs.getMaxLuminance());
+
+        // changes of lights outside the group do not count
+        gateway.getLightByName("Porch").updateOn(false);
+        Assert.assertEquals(1, downstairs.getOnCount());
+
+        gateway.onRead(groupInfo(1, 1));
+        Assert.assertEquals(1, downstairs.getMemberCount());
+        Assert.assertFalse(downstairs.isAnyOn());
+        Assert.assertEquals(0, downstairs.getMaxLuminance());
+    }
+
+    @Test
+    public void testGroupAggregateRebuildDuringMemberChanges() throws Exception {
+        final Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen", "Hallway", "Porch"));
+        gateway.onRead(groupList("Downstairs"));
+        gateway.onRead(groupInfo(1, 1, 2, 3));
+        final Group downstairs = gateway.getGroupById(1);
+        final Light kitchen = gateway.getLightByName("Kitchen");
+
+        Thread rebuilder = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 20000; i++) {
+                    gateway.rebuildAggregate(downstairs.getId(), downstairs.getLights());
+                }
+            }
+        };
+        rebuilder.start();
+        for (int i = 0; i < 20000; i++) {
+            kitchen.applyCommand(new SetLuminance(kitchen, (byte) (i % 100), (short) 0));
+            kitchen.applyCommand(new OnOffCommand(kitchen, i % 2 == 0));
+        }
+        rebuilder.join();
+
+        GroupAggregate aggregate = downstairs.getAggregate();
+        Assert.assertEquals(3, aggregate.getMemberCount());
+        Assert.assertEquals(kitchen.isOn() ? 3 : 2, aggregate.getOnCount());
+        Assert.assertEquals(kitchen.isOn() ? kitchen.getLuminance() : 80, aggregate.getMinLuminance());
+        Assert.assertTrue(aggregate.isColorUniform());
+    }
+
+    @Test
+    public void testOptimisticUpdateRolledBackWhenSendFails() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+        long before = kitchen.getState();
+        try {
+            kitchen.setLuminance((byte) 20, (short) 0);
+            Assert.fail("send without connection must fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertEquals(before, kitchen.getState());
+        Assert.assertFalse(kitchen.hasPendingChanges());
+    }
+
+    /**
+     * Remembers the luminances reported to the listeners of a luminary.
+     */
+    private static List<Short> recordLuminance(Luminary luminary) {
+        final List<Short> luminances = Collections.synchronizedList(new ArrayList<Short>());
+        luminary.registerListener(new Luminary.ChangeListener() {
+            @Override
+            public void luminarySwitchedOnUpdated(Luminary lum, boolean switchedOn) {
+            }
+
+            @Override
+            public void luminaryTemperatureUpdated(Luminary lum, short temp) {
+            }
+
+            @Override
+            public void luminaryLuminanceUpdated(Luminary lum, short luminance) {
+                luminances.add(luminance);
+            }
+
+            @Override
+            public void luminaryColorUpdated(Luminary lum, byte red, byte green, byte blue) {
+            }
+        });
+        return luminances;
+    }
+
+    @Test
+    public void testRollbackKeepsStatusReportedAfterCommand() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+        kitchen.applyState(LightState.withRGB(kitchen.getState(), (byte) 0x01, (byte) 0x02, (byte) 0x03));
+        long before = kitchen.getState();
+
+        Packet command = new SetLuminance(kitchen, (byte) 10, (short) 0);
+        long previous = kitchen.applyCommand(command);
+        Assert.assertEquals(before, previous);
+        Assert.assertEquals(command.applyTo(previous), kitchen.getState());
+
+        gateway.onRead(allLightStatus("Kitchen"));
+        long reported = kitchen.getState();
+        kitchen.rollbackState(command.applyTo(previous), previous);
+        Assert.assertEquals(reported, kitchen.getState());
+        Assert.assertArrayEquals(new byte[] { 0x11, 0x22, 0x33 }, kitchen.getRGB());
+    }
+
+    @Test
+    public void testOptimisticUpdateConfirmedByAck() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(2, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.refreshAllLights();
+            Light light = gateway.getLights().get(0);
+            List<Short> luminances = recordLuminance(light);
+            long confirmedAt = light.getConfirmedAt();
+
+            CommandFuture future = gateway.sendAsync(new SetLuminance(light, (byte) 30, (short) 0));
+            Assert.assertEquals(30, light.getLuminance());
+            Assert.assertTrue(future.await());
+            Assert.assertEquals(30, light.getLuminance());
+            Assert.assertFalse(light.hasPendingChanges());
+            Assert.assertTrue(light.getConfirmedAt() - confirmedAt > 0);
+            Assert.assertEquals(Arrays.asList((short) 30), luminances);
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testOptimisticUpdateRolledBackOnErrorReply() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(2, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            // unknown to the gateway, which answers with an error
+            Light unknown = new Light(gateway, new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 });
+            gateway.addLight(unknown);
+            unknown.applyState(LightState.withLuminance(unknown.getState(), (byte) 100));
+            List<Short> luminances = recordLuminance(unknown);
+
+            CommandFuture future = gateway.sendAsync(new SetLuminance(unknown, (byte) 30, (short) 0));
+            Assert.assertFalse(future.await());
+            Assert.assertEquals(100, unknown.getLuminance());
+            Assert.assertFalse(unknown.hasPendingChanges());
+            Assert.assertEquals(Arrays.asList((short) 30, (short) 100), luminances);
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testOptimisticUpdateRolledBackAfterConfirmationTimeout() throws Exception {
+        GatewaySimulator simulator = new GatewaySimulator(2, 1).start();
+        Gateway gateway = new Gateway("127.0.0.1", simulator.getPort());
+        try {
+            gateway.connect();
+            gateway.refreshAllLights();
+            Light light = gateway.getLights().get(0);
+            List<Short> luminances = recordLuminance(light);
+            gateway.setConfirmationTimeout(100);
+            gateway.setMaxRetransmissions(0);
+            simulator.setSilent(true);
+
+            CommandFuture future = gateway.sendAsync(new SetLuminance(light, (byte) 30, (short) 0));
+            try {
+                future.await();
+                Assert.fail("the command was never acknowledged");
+            } catch (IOException e) {
+                // expected
+            }
+            Assert.assertEquals(100, light.getLuminance());
+            Assert.assertFalse(light.hasPendingChanges());
+            Assert.assertEquals(Arrays.asList((short) 30, (short) 100), luminances);
+        } finally {
+            gateway.disconnect();
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testRedundantCommandSuppression() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+
+        gateway.setRedundantCommandSuppression(10000);
+        Assert.assertFalse(kitchen.setLuminance((byte) 80, (short) 0, false));
+        Assert.assertFalse(kitchen.setOn(true, false));
+        Assert.assertEquals(2, gateway.getSuppressedCommands());
+        try {
+            kitchen.setLuminance((byte) 80, (short) 0, true);
+            Assert.fail("forced command must be sent");
+        } catch (IOException e) {
+            // expected, not connected
+        }
+        try {
+            kitchen.setLuminance((byte) 50, (short) 0);
+            Assert.fail("changing command must be sent");
+        } catch (IOException e) {
+            // expected, not connected
+        }
+    }
+
+    @Test
+    public void testOnOffReportDoesNotConfirmWholeState() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+        gateway.setRedundantCommandSuppression(10);
+        Thread.sleep(20);
+
+        ByteBuffer reply = frame(Packet.COMMAND_LIGHT_STATUS, 13);
+        reply.put(11, (byte) 0x01).put(18, (byte) 0x10).put(21, (byte) 0x01).position(0);
+        gateway.onRead(reply);
+        try {
+            kitchen.setLuminance((byte) 80, (short) 0, false);
+            Assert.fail("luminance was not confirmed by the on/off report");
+        } catch (IOException e) {
+            // expected, not connected
+        }
+    }
+
+    @Test
+    public void testGroupCommandsAreNotSuppressed() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(allLightStatus("Kitchen"));
+        gateway.onRead(groupList("Downstairs"));
+        Group downstairs = gateway.getGroupById(1);
+        downstairs.updateOn(true);
+
+        gateway.setRedundantCommandSuppression(10000);
+        try {
+            downstairs.setOn(true, false);
+            Assert.fail("group command must be sent");
+        } catch (IOException e) {
+            // expected, not connected
+        }
+        Assert.assertEquals(0, gateway.getSuppressedCommands());
+    }
+
+    @Test
+    public void testCustomDecoder() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        Assert.assertNotNull(gateway.getDecoder(Packet.COMMAND_ALL_LIGHT_STATUS));
+        Assert.assertEquals(UpdateAllLightStatus.class, gateway.getEncoder(Packet.COMMAND_ALL_LIGHT_STATUS));
+        final int[] decoded = new int[1];
+        gateway.registerDecoder((byte) 0x70, null, new PacketDecoder() {
+            @Override
+            public void decode(Gateway gateway, ByteBuffer frame) {
+                decoded[0] = frame.get(9);
+            }
+        });
+        ByteBuffer buf = frame((byte) 0x70, 1);
+        buf.put((byte) 42);
+        buf.flip();
+        gateway.onRead(buf);
+        Assert.assertEquals(42, decoded[0]);
+    }
+
+}
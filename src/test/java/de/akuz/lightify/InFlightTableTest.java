@@ -0,0 +1,66 @@
+package de.akuz.lightify;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InFlightTableTest {
+
+    @Test
+    public void testWindowNeverReusesOutstandingSequence() throws Exception {
+        InFlightTable table = new InFlightTable(2, 0);
+        Packet query = new UpdateGroupsList();
+        byte first = table.acquire(query, false);
+        byte second = table.acquire(query, false);
+        Assert.assertNotEquals(first, second);
+        try {
+            table.acquire(query, false);
+            Assert.fail("window of two must be full");
+        } catch (IOException e) {
+            // expected
+        }
+        CommandFuture future = table.begin(first, query.serialize(first), 0, 10, null, 0, 0);
+        Assert.assertSame(future, table.acknowledge(first, true));
+        Assert.assertNull(table.acknowledge(first, true));
+        byte third = table.acquire(query, false);
+        Assert.assertNotEquals(second, third);
+    }
+
+    @Test
+    public void testRetransmitThenLose() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        gateway.onRead(GatewayTest.allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+        long before = kitchen.getState();
+
+        InFlightTable table = new InFlightTable(16, 1);
+        Packet command = new SetLuminance(kitchen, (byte) 10, (short) 0);
+        byte seq = table.acquire(command, false);
+        long expected = command.applyTo(before);
+        CommandFuture future = table.begin(seq, command.serialize(seq), 0, 10, kitchen, before, expected);
+        kitchen.applyState(expected);
+        Assert.assertTrue(table.isPending(kitchen));
+
+        table.expire(5, gateway);
+        Assert.assertEquals(0, table.getStatistics().getRetransmitted());
+        table.expire(10, gateway);
+        Assert.assertEquals(1, table.getStatistics().getRetransmitted());
+        Assert.assertEquals(expected, kitchen.getState());
+
+        table.expire(20, gateway);
+        LinkStatistics stats = table.getStatistics();
+        Assert.assertEquals(1, stats.getLost());
+        Assert.assertEquals(0, stats.getOutstanding());
+        Assert.assertEquals(before, kitchen.getState());
+        Assert.assertFalse(table.isPending(kitchen));
+        Assert.assertTrue(future.isDone());
+        try {
+            future.await();
+            Assert.fail("lost command must fail its future");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+}
@@ -0,0 +1,277 @@
+package de.akuz.lightify;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end load test. Starts a {@link GatewaySimulator} (unless a real gateway is given), connects one or more
+ * {@link Gateway} instances and lets worker threads drive a weighted mix of colour, luminance and status poll
+ * commands for a fixed duration. Every worker waits for the reply of its command before sending the next one.
+ *
+ * <pre>
+ * java ... de.akuz.lightify.LoadHarness lights=1000 groups=40 gateways=2 workers=32 duration=30000 color=4 luminance=4 poll=2
+ * </pre>
+ *
+ * Pass {@code host=...} and {@code port=...} to run against a real gateway instead of the simulator.
+ */
+public class LoadHarness {
+
+    public static class Config {
+        int lights = 1000;
+        int groups = 40;
+        int gateways = 1;
+        int workers = 16;
+        long duration = 10000;
+        int color = 4;
+        int luminance = 4;
+        int poll = 2;
+        String host;
+        int port = 4000;
+
+        void set(String key, String value) {
+            if ("host".equals(key)) {
+                host = value;
+                return;
+            }
+            long v = Long.parseLong(value);
+            if ("lights".equals(key)) {
+                lights = (int) v;
+            } else if ("groups".equals(key)) {
+                groups = (int) v;
+            } else if ("gateways".equals(key)) {
+                gateways = (int) v;
+            } else if ("workers".equals(key)) {
+                workers = (int) v;
+            } else if ("duration".equals(key)) {
+                duration = v;
+            } else if ("color".equals(key)) {
+                color = (int) v;
+            } else if ("luminance".equals(key)) {
+                luminance = (int) v;
+            } else if ("poll".equals(key)) {
+                poll = (int) v;
+            } else if ("port".equals(key)) {
+                port = (int) v;
+            } else {
+                throw new IllegalArgumentException("unknown option " + key);
+            }
+        }
+    }
+
+    public static class Report {
+        long commands;
+        long errors;
+        double seconds;
+        long[] latencies;
+        long allocatedBytes = -1;
+        LinkStatistics[] links;
+
+        public double getCommandsPerSecond() {
+            return commands / seconds;
+        }
+
+        /**
+         * @return the latency at the given quantile in microseconds
+         */
+        public long getLatency(double quantile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(latencies.length - 1, Math.floor(quantile * latencies.length));
+            return TimeUnit.NANOSECONDS.toMicros(latencies[index]);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("commands        %d (%d errors) in %.1f s%n", commands, errors, seconds));
+            sb.append(String.format("throughput      %.0f commands/s%n", getCommandsPerSecond()));
+            sb.append(String.format("latency         p50 %d us, p99 %d us, p999 %d us%n", getLatency(0.5),
+                    getLatency(0.99), getLatency(0.999)));
+            if (allocatedBytes >= 0) {
+                sb.append(String.format("allocation rate %.1f MB/s%n", allocatedBytes / seconds / (1024 * 1024)));
+            }
+            for (int i = 0; i < links.length; i++) {
+                sb.append(String.format("gateway %d       %s%n", i, links[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            config.set(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.print(run(config));
+    }
+
+    public static Report run(final Config config) throws Exception {
+        GatewaySimulator simulator = null;
+        String host = config.host;
+        int port = config.port;
+        if (host == null) {
+            simulator = new GatewaySimulator(config.lights, config.groups).start();
+            host = "127.0.0.1";
+            port = simulator.getPort();
+        }
+        final Gateway[] gateways = new Gateway[config.gateways];
+        try {
+            for (int i = 0; i < gateways.length; i++) {
+                gateways[i] = new Gateway(host, port);
+                gateways[i].connect();
+                gateways[i].refreshGroups();
+                gateways[i].refreshAllLights();
+            }
+
+            final CountDownLatch start = new CountDownLatch(1);
+            final Worker[] workers = new Worker[config.workers];
+            Thread[] threads = new Thread[workers.length];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(config, gateways[i % gateways.length], start, i);
+                threads[i] = new Thread(workers[i], "load-worker-" + i);
+                threads[i].start();
+            }
+
+            // workers measure themselves, this covers the event loops; the simulator and the harness are left out
+            long[] eventLoops = new long[gateways.length];
+            for (int i = 0; i < gateways.length; i++) {
+                eventLoops[i] = gateways[i].getEventLoopId();
+            }
+            long allocatedBefore = allocatedBytes(eventLoops);
+            long begin = System.nanoTime();
+            start.countDown();
+            for (Thread t : threads) {
+                t.join();
+            }
+            long elapsed = System.nanoTime() - begin;
+            long allocatedAfter = allocatedBytes(eventLoops);
+
+            Report report = new Report();
+            report.seconds = elapsed / 1e9;
+            int samples = 0;
+            for (Worker w : workers) {
+                report.commands += w.commands;
+                report.errors += w.errors;
+                samples += w.samples;
+            }
+            report.latencies = new long[samples];
+            int pos = 0;
+            for (Worker w : workers) {
+                System.arraycopy(w.latencies, 0, report.latencies, pos, w.samples);
+                pos += w.samples;
+            }
+            Arrays.sort(report.latencies);
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                report.allocatedBytes = allocatedAfter - allocatedBefore;
+                for (Worker w : workers) {
+                    report.allocatedBytes += w.allocated;
+                }
+            }
+            report.links = new LinkStatistics[gateways.length];
+            for (int i = 0; i < gateways.length; i++) {
+                report.links[i] = gateways[i].getLinkStatistics();
+            }
+            return report;
+        } finally {
+            for (Gateway g : gateways) {
+                if (g != null) {
+                    g.disconnect();
+                }
+            }
+            if (simulator != null) {
+                simulator.stop();
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated so far by the given threads that are still alive, -1 if the JVM cannot tell
+     */
+    private static long allocatedBytes(long... threadIds) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : sunBean.getThreadAllocatedBytes(threadIds)) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static class Worker implements Runnable {
+
+        private static final int MAX_SAMPLES = 1 << 20;
+
+        private final Config config;
+        private final Gateway gateway;
+        private final CountDownLatch start;
+        private final Random random;
+
+        final long[] latencies;
+        int samples;
+        long commands;
+        long errors;
+        long allocated;
+
+        Worker(Config config, Gateway gateway, CountDownLatch start, int seed) {
+            this.config = config;
+            this.gateway = gateway;
+            this.start = start;
+            this.random = new Random(seed);
+            this.latencies = new long[(int) Math.min(MAX_SAMPLES, config.duration * 100)];
+        }
+
+        @Override
+        public void run() {
+            List<Light> lights = gateway.getLights();
+            int total = config.color + config.luminance + config.poll;
+            long self = Thread.currentThread().getId();
+            try {
+                start.await();
+                long allocatedBefore = allocatedBytes(self);
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.duration);
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    Light light = lights.get(random.nextInt(lights.size()));
+                    int op = random.nextInt(total);
+                    Packet packet;
+                    if (op < config.color) {
+                        int rgb = random.nextInt();
+                        packet = new SetColor(light, (byte) (rgb >> 16), (byte) (rgb >> 8), (byte) rgb, (short) 0);
+                    } else if (op < config.color + config.luminance) {
+                        packet = new SetLuminance(light, (byte) random.nextInt(101), (short) 0);
+                    } else {
+                        packet = new UpdateLightStatus(light.getAddress());
+                    }
+                    try {
+                        gateway.sendAsync(packet).await();
+                        if (samples < latencies.length) {
+                            latencies[samples++] = System.nanoTime() - now;
+                        }
+                    } catch (java.io.IOException e) {
+                        errors++;
+                    }
+                    commands++;
+                }
+                allocated = allocatedBytes(self) - allocatedBefore;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,25 @@
+package de.akuz.lightify;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LoadHarnessTest {
+
+    @Test
+    public void testShortRunAgainstSimulator() throws Exception {
+        LoadHarness.Config config = new LoadHarness.Config();
+        config.lights = 300;
+        config.groups = 10;
+        config.gateways = 2;
+        config.workers = 4;
+        config.duration = 500;
+
+        LoadHarness.Report report = LoadHarness.run(config);
+        Assert.assertTrue(report.commands > 0);
+        Assert.assertEquals(0, report.errors);
+        Assert.assertEquals(2, report.links.length);
+        Assert.assertEquals(0, report.links[0].getLost());
+        Assert.assertTrue(report.getLatency(0.5) <= report.getLatency(0.99));
+    }
+
+}
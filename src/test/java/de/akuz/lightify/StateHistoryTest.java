@@ -0,0 +1,54 @@
+package de.akuz.lightify;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StateHistoryTest {
+
+    @Test
+    public void testRingKeepsLastChanges() {
+        StateHistory history = new StateHistory(3, 1);
+        history.record(0, 10, 1);
+        history.record(0, 20, 1);
+        history.record(0, 30, 2);
+        history.record(0, 40, 3);
+        history.record(0, 50, 4);
+        Assert.assertEquals(3, history.size(0));
+
+        long[] times = new long[8];
+        long[] states = new long[8];
+        Assert.assertEquals(3, history.query(0, 0, Long.MAX_VALUE, times, states));
+        Assert.assertArrayEquals(new long[] { 30, 40, 50 }, Arrays.copyOf(times, 3));
+        Assert.assertArrayEquals(new long[] { 2, 3, 4 }, Arrays.copyOf(states, 3));
+
+        Assert.assertEquals(2, history.query(0, 35, 50, times, states));
+        Assert.assertEquals(40, times[0]);
+        Assert.assertEquals(1, history.query(0, 0, 100, new long[1], new long[1]));
+
+        // slots beyond the preallocated ones grow the buffers
+        history.record(5, 60, 7);
+        Assert.assertEquals(1, history.size(5));
+        Assert.assertEquals(0, history.size(4));
+    }
+
+    @Test
+    public void testFilledFromGatewayReplies() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        StateHistory history = gateway.getStateStore().enableHistory(16);
+        gateway.onRead(GatewayTest.allLightStatus("Kitchen"));
+        Light kitchen = gateway.getLightByName("Kitchen");
+        kitchen.updateOn(false);
+        kitchen.updateOn(false);
+
+        long[] times = new long[16];
+        long[] states = new long[16];
+        Assert.assertEquals(2, kitchen.getHistory(0, Long.MAX_VALUE, times, states));
+        Assert.assertTrue(LightState.isOn(states[0]));
+        Assert.assertFalse(LightState.isOn(states[1]));
+        Assert.assertEquals(80, LightState.getLuminance(states[1]));
+        Assert.assertEquals(2, history.size(kitchen.getSlot()));
+    }
+
+}
@@ -0,0 +1,57 @@
+package de.akuz.lightify;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WireCaptureTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDumpAndReplay() throws Exception {
+        Gateway gateway = new Gateway("127.0.0.1");
+        WireCapture capture = new WireCapture(4096, 16);
+        gateway.setWireCapture(capture);
+        gateway.onRead(GatewayTest.allLightStatus("Kitchen", "Hallway"));
+        Assert.assertEquals(1, capture.size());
+
+        File file = folder.newFile("capture.bin");
+        capture.dump(file);
+
+        CaptureReplay replay = new CaptureReplay(file);
+        Assert.assertEquals(1, replay.getFrameCount());
+        Assert.assertEquals(WireCapture.INBOUND, replay.getDirection(0));
+
+        Gateway offline = new Gateway("127.0.0.1");
+        Assert.assertEquals(1, replay.replay(offline));
+        Assert.assertEquals(2, offline.getLights().size());
+        Assert.assertNotNull(offline.getLightByName("Hallway"));
+    }
+
+    @Test
+    public void testRingKeepsMostRecentFrames() throws Exception {
+        WireCapture capture = new WireCapture(32, 8);
+        for (int i = 0; i < 10; i++) {
+            capture.record(WireCapture.OUTBOUND, ByteBuffer.wrap(new byte[] { (byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9 }));
+        }
+        capture.record(WireCapture.OUTBOUND, ByteBuffer.wrap(new byte[64]));
+        Assert.assertEquals(10, capture.getFramesWritten());
+        Assert.assertEquals(1, capture.getFramesDropped());
+        Assert.assertEquals(3, capture.size());
+
+        File file = folder.newFile("ring.bin");
+        capture.dump(file);
+        CaptureReplay replay = new CaptureReplay(file);
+        Assert.assertEquals(3, replay.getFrameCount());
+        Assert.assertEquals(7, replay.getFrame(0)[0]);
+        Assert.assertEquals(9, replay.getFrame(2)[0]);
+        Assert.assertEquals(9, replay.getFrame(2)[9]);
+    }
+
+}